@@ -78,6 +78,16 @@ public abstract class DefectException extends Exception implements Defect {
         return pProperty;
     }
 
+    /**
+     * A child archive is not extracted, so its path is the path of the parent archive followed by the relative path.
+     */
+    private String getArchivePath(PArchive pArchive) {
+        if (pArchive.isArchiveFile()) {
+            return getArchivePath(pArchive.getParentArchive()) + "!" + pArchive.getRelativePath();
+        }
+        return pArchive.getFile().getAbsolutePath();
+    }
+
     public String getDefectMessage() {
         StringBuffer result = new StringBuffer();
         result.append(this.getClass().getSimpleName()).append(":");
@@ -86,7 +96,7 @@ public abstract class DefectException extends Exception implements Defect {
             result.append(String.format("\n\t[MarkerFile=%s]", pMarker.getFile().getAbsolutePath()));
         }
         if (pArchive != null) {
-            result.append(String.format("\n\t[Archive=%s]", pArchive.getFile().getAbsolutePath()));
+            result.append(String.format("\n\t[Archive=%s]", getArchivePath(pArchive)));
             if (pFile != null) {
                 result.append(String.format("\n\t[Archive File=%s]", pFile.getRelativePath()));
             }
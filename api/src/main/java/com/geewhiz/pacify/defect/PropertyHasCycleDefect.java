@@ -31,6 +31,12 @@ public class PropertyHasCycleDefect extends DefectException {
     private String            property;
     private String            cycle;
 
+    public PropertyHasCycleDefect(String property, String cycle) {
+        super();
+        this.property = property;
+        this.cycle = cycle;
+    }
+
     public PropertyHasCycleDefect(PMarker pMarker, String property, String cycle) {
         super(pMarker);
         this.property = property;
@@ -1,6 +1,6 @@
 /*-
  * ========================LICENSE_START=================================
- * com.geewhiz.pacify.resolver.file-resolver
+ * com.geewhiz.pacify.commandline
  * %%
  * Copyright (C) 2011 - 2017 Sven Oppermann
  * %%
@@ -18,30 +18,22 @@
  * =========================LICENSE_END==================================
  */
 
-package com.geewhiz.pacify.property.resolver.fileresolver.exceptions;
+package com.geewhiz.pacify.commandline.commands;
 
+import java.util.ArrayList;
+import java.util.List;
 
+import com.beust.jcommander.Parameter;
 
-public class WrongPropertyLineRuntimeException extends RuntimeException {
-
-    private static final long serialVersionUID = 1L;
-
-    private String            line;
-
-    public WrongPropertyLineRuntimeException() {
-        super();
-    }
-
-    public WrongPropertyLineRuntimeException(String line) {
-        super("Property line isn't correct [" + line + "]. Format has to be <property>=<value>.");
-        this.setLine(line);
-    }
+/**
+ * The exclude option of all commands which search a package for marker files.
+ */
+public class ExcludeParameter {
 
-    public String getLine() {
-        return line;
-    }
+    @Parameter(names = { "-x", "--exclude" }, description = "Glob pattern of files and folders which are not searched for marker files, e.g. node_modules. Can be given more than once.", required = false)
+    private List<String> excludes = new ArrayList<String>();
 
-    private void setLine(String property) {
-        this.line = property;
+    public List<String> getExcludes() {
+        return excludes;
     }
 }
@@ -24,6 +24,7 @@ import java.io.File;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
 import com.geewhiz.pacify.PreConfigure;
 
 @Parameters(separators = "=", commandDescription = "Used to configure a package.")
@@ -32,11 +33,19 @@ public class PreConfigureCommand extends BasePropertyResolverCommand {
     @Parameter(names = { "-p", "--packagePath" }, description = "The package path which you want to configure.", required = true)
     private File packagePath;
 
-    @Parameter(names = { "-c", "--copyTo" }, description = "Create first a copy and configure the copy not the original package.", required = false)
+    @ParametersDelegate
+    private ExcludeParameter excludeParameter = new ExcludeParameter();
+
+    @Parameter(names = { "-c", "--copyTo" }, description = "Create first a copy and configure the copy not the original package. Files which are not modified by pacify are hard links to the files of the package, so writing into them later on changes the package as well. Use --noLink if the copy is modified afterwards.", required = false)
     private File copyDestination;
 
+    @Parameter(names = { "-nl", "--noLink" }, description = "Copy every file for --copyTo instead of linking the files which are not modified by pacify.", required = false)
+    private boolean noLink;
+
     public void configure(PreConfigure preConfigure) {
         preConfigure.setPackagePath(packagePath);
+        preConfigure.setExcludes(excludeParameter.getExcludes());
         preConfigure.setCopyDestination(copyDestination);
+        preConfigure.setLinkUnmodifiedFiles(!noLink);
     }
 }
@@ -24,6 +24,7 @@ import java.io.File;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
 import com.geewhiz.pacify.Replacer;
 
 
@@ -34,11 +35,27 @@ public class ReplacerCommand extends BasePropertyResolverCommand {
     @Parameter(names = { "-p", "--packagePath" }, description = "The package path which you want to configure.", required = true)
     private File packagePath;
 
-    @Parameter(names = { "-c", "--copyTo" }, description = "Create first a copy and configure the copy not the original package.", required = false)
+    @Parameter(names = { "-c", "--copyTo" }, description = "Create first a copy and configure the copy not the original package. Files which are not modified by pacify are hard links to the files of the package, so writing into them later on changes the package as well. Use --noLink if the copy is modified afterwards.", required = false)
     private File copyDestination;
 
+    @Parameter(names = { "-nl", "--noLink" }, description = "Copy every file for --copyTo instead of linking the files which are not modified by pacify.", required = false)
+    private boolean noLink;
+
+    @Parameter(names = { "-t", "--threads" }, description = "Number of threads which are used to read the marker files and to filter the files. Default is 1.", required = false, validateWith = ThreadCountValidator.class)
+    private int  threads = 1;
+
+    @ParametersDelegate
+    private ExcludeParameter excludeParameter = new ExcludeParameter();
+
+    @Parameter(names = { "-m", "--manifest" }, description = "Manifest file of the last run. Files and archives whose template and values didn't change since the last run get the output of the last run instead of being filtered again. The outputs are kept in a folder next to the manifest, as hard links to the files of the run which wrote them if possible.", required = false)
+    private File manifestFile;
+
     public void configure(Replacer replacer) {
         replacer.setPackagePath(packagePath);
         replacer.setCopyDestination(copyDestination);
+        replacer.setLinkUnmodifiedFiles(!noLink);
+        replacer.setThreadCount(threads);
+        replacer.setExcludes(excludeParameter.getExcludes());
+        replacer.setManifestFile(manifestFile);
     }
 }
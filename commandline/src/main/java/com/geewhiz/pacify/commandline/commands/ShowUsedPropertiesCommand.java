@@ -24,6 +24,7 @@ import java.io.File;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
 import com.geewhiz.pacify.ShowUsedProperties;
 
 
@@ -34,6 +35,9 @@ public class ShowUsedPropertiesCommand {
     @Parameter(names = { "-p", "--packagePath" }, description = "The package path.", required = true)
     public File    packagePath;
 
+    @ParametersDelegate
+    private ExcludeParameter excludeParameter = new ExcludeParameter();
+
     @Parameter(names = { "-d", "--destinationFile" }, description = "Where to write the result to. If not given, it will be printed to stdout", required = false)
     private File   targetFile;
 
@@ -45,6 +49,7 @@ public class ShowUsedPropertiesCommand {
 
     public void configure(ShowUsedProperties showUsedProperties) {
         showUsedProperties.setPackagePath(packagePath);
+        showUsedProperties.setExcludes(excludeParameter.getExcludes());
         showUsedProperties.setTargetFile(targetFile);
         showUsedProperties.setOutputEncoding(targetEncoding);
         showUsedProperties.setOutputType(targetFile != null ? ShowUsedProperties.OutputType.File
@@ -0,0 +1,41 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.commandline
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.commandline.commands;
+
+import com.beust.jcommander.IParameterValidator;
+import com.beust.jcommander.ParameterException;
+
+public class ThreadCountValidator implements IParameterValidator {
+
+    @Override
+    public void validate(String name, String value) throws ParameterException {
+        int threadCount;
+        try {
+            threadCount = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ParameterException("Parameter " + name + " should be a number but was [" + value + "].");
+        }
+
+        if (threadCount < 1) {
+            throw new ParameterException("Parameter " + name + " should be at least 1 but was [" + value + "].");
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.io.File;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
 import com.geewhiz.pacify.Validator;
 
 
@@ -34,8 +35,12 @@ public class ValidateCommand extends BasePropertyResolverCommand {
     @Parameter(names = { "-p", "--packagePath" }, description = "The package path which you want to verify.", required = true)
     public File packagePath;
 
+    @ParametersDelegate
+    private ExcludeParameter excludeParameter = new ExcludeParameter();
+
     public void configure(Validator validator) {
         validator.setPackagePath(packagePath);
+        validator.setExcludes(excludeParameter.getExcludes());
         validator.enableMarkerFileChecks();
         validator.enablePropertyResolveChecks();
     }
@@ -125,4 +125,22 @@ public class TestCommandlineCall {
         TestUtil.checkIfResultIsAsExpected(myPackagePath, myExpectedResultPath);
     }
 
+    @Test
+    public void testThreadsMustBeAtLeastOne() {
+        File testBasePath = new File("target/test-classes/testValidate");
+        File myTestProperty = new File(testBasePath, "properties/myTest.properties");
+
+        PacifyViaCommandline pacifyViaCommandline = new PacifyViaCommandline();
+
+        int result = pacifyViaCommandline.mainInternal(new String[] {
+                "replace",
+                "--resolvers=FileResolver",
+                "--packagePath=" + testBasePath,
+                "--threads=0",
+                "-RFileResolver.file=" + myTestProperty.getAbsolutePath()
+        });
+
+        Assert.assertEquals("Zero threads should be rejected.", 1, result);
+    }
+
 }
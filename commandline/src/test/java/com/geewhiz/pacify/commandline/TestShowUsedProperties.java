@@ -93,6 +93,37 @@ public class TestShowUsedProperties {
                 outContent.toString());
     }
 
+    @Test
+    public void writeToStdoutWithExclude() throws Exception {
+        PrintStream oldStdOut = System.out;
+
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        File testBasePath = new File("target/test-classes/testShowUsedProperties");
+        File packagePath = new File(testBasePath, "package");
+
+        int result = 0;
+        try {
+            PacifyViaCommandline pacifyViaCommandline = new PacifyViaCommandline();
+
+            result = pacifyViaCommandline.mainInternal(new String[] {
+                    "showUsedProperties",
+                    "--packagePath=" + packagePath,
+                    "--exclude=folder2-CMFile.pacify"
+            });
+        }
+        finally {
+            System.setOut(oldStdOut);
+        }
+
+        outContent.close();
+
+        Assert.assertEquals("ShowUsedProperties should not return an error.", 0, result);
+        Assert.assertEquals(FileUtils.readFileToString(new File(testBasePath + "/expectedResult/resultWithExclude.txt")),
+                outContent.toString());
+    }
+
     @Test
     public void writeToFile() throws Exception {
         File targetResourceFolder = new File("target/test-classes/testShowUsedProperties");
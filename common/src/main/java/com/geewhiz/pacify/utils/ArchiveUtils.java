@@ -20,30 +20,49 @@
 
 package com.geewhiz.pacify.utils;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
-import org.apache.commons.compress.changes.ChangeSet;
-import org.apache.commons.compress.changes.ChangeSetPerformer;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 
 import com.geewhiz.pacify.defect.DefectRuntimeException;
 import com.geewhiz.pacify.model.PArchive;
@@ -51,7 +70,19 @@ import com.geewhiz.pacify.model.PFile;
 import com.geewhiz.pacify.model.utils.ModelUtils;
 
 public class ArchiveUtils {
-	
+
+    private static final int BUFFER_SIZE         = 64 * 1024;
+
+    /**
+     * Archive entries up to this size are kept in memory while they are filtered.
+     */
+    public static final int  IN_MEMORY_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Child archives up to this size are rewritten in memory.
+     */
+    static final int         NESTED_ARCHIVE_IN_MEMORY_THRESHOLD = 32 * 1024 * 1024;
+
 	public static boolean isArchiveAndIsSupported(String archiveName) {
         String type = getArchiveType(archiveName);
 
@@ -113,14 +144,12 @@ public class ArchiveUtils {
     }
 
     /**
-     * 
-     * @param archiveFile
-     * @param archiveType
-     * @param pFile
      * @return if pfile is a regular expression, a list of pfiles otherwise only one list entry.
+     * @deprecated the archive is read once for every pfile, use {@link #extractPFiles(PArchive)}.
      */
+    @Deprecated
     public static List<PFile> extractPFile(PFile pFile) {
-        if (pFile.getFile() != null) {
+        if (pFile.hasContent()) {
             List<PFile> result = new ArrayList<PFile>();
             result.add(pFile);
             return result;
@@ -160,6 +189,10 @@ public class ArchiveUtils {
         return result;
     }
 
+    /**
+     * @deprecated child archives are read as nested streams by {@link #extractPFiles(PArchive)}, so they don't have to be extracted.
+     */
+    @Deprecated
     public static File extractPArchive(PArchive pArchive) {
         if (pArchive.getFile() != null) {
             return pArchive.getFile();
@@ -169,130 +202,449 @@ public class ArchiveUtils {
         return extractFile(parentArchive.getFile(), parentArchive.getType(), pArchive.getRelativePath());
     }
 
+    /**
+     * Resolves all pfiles of the archive and of its child archives. The archive is read only once, child archives are read as nested streams
+     * while the parent is read, so they are never extracted. Entries of pfiles which are smaller than IN_MEMORY_THRESHOLD are kept in memory.
+     * 
+     * @return for each pfile the resolved pfiles, a list of clones if the pfile is a regular expression otherwise the pfile itself. Pfiles of a
+     *         child archive which does not exist are missing.
+     */
+    public static Map<PFile, List<PFile>> extractPFiles(PArchive pArchive) {
+        Map<PFile, List<PFile>> result = new IdentityHashMap<PFile, List<PFile>>();
+
+        if (isZipType(pArchive.getType())) {
+            extractPFilesFromZip(pArchive, result);
+            return result;
+        }
+
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(pArchive.getFile()), BUFFER_SIZE);
+            extractPFiles(Collections.singletonList(pArchive), pArchive.getFile(), is, result);
+        } catch (ArchiveException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+
+        return result;
+    }
+
+    /**
+     * Rewrites the archives of the given pfiles. Each top level archive is read and written exactly once, child archives are rewritten as nested
+     * streams while their parent is written.
+     */
     public static void replaceFilesInArchives(List<PFile> replacePFiles) {
-        // for performance, get all pfiles of the same archive
-        Map<PArchive, List<PFile>> pFilesToReplace = getPFilesToReplace(replacePFiles);
-
-        // replace the pfiles
-        for (PArchive pArchive : pFilesToReplace.keySet()) {
-            List<PFile> pFiles = pFilesToReplace.get(pArchive);
-            replacePFilesInArchive(pArchive, pFiles);
-            for (PFile toDelete : pFiles) {
-                // delete the temporary extracted file
-                toDelete.getFile().delete();
+        // for performance, collect the changes of all pfiles of the same top level archive
+        Map<PArchive, ArchiveChanges> changesPerArchive = new LinkedHashMap<PArchive, ArchiveChanges>();
+
+        for (PFile pFile : replacePFiles) {
+            if (!pFile.isArchiveFile() || !pFile.hasContent()) {
+                continue;
             }
+            ArchiveChanges changes = getArchiveChanges(pFile.getPArchive(), changesPerArchive);
+            EntryContent replaceWith = pFile.isInMemory() ? new EntryContent(pFile.getContent()) : new EntryContent(pFile.getFile());
+            changes.entries.put(pFile.getRelativePath(), replaceWith);
         }
 
-        // if we have an archive in archive, replace it. Order is relevant, so we use a LinkedHashMap pfile -> parchive3 -> parchive2 -> parchive1
-        LinkedHashMap<PArchive, List<PArchive>> parentArchives = getParentArchives(replacePFiles);
+        for (PArchive pArchive : changesPerArchive.keySet()) {
+            replaceEntriesInArchive(pArchive.getFile(), pArchive.getType(), changesPerArchive.get(pArchive));
+        }
 
-        // replace the archives within the parent archive
-        for (PArchive parentArchive : parentArchives.keySet()) {
-            List<PArchive> pArchives = parentArchives.get(parentArchive);
-            replacePArchivesInArchive(parentArchive, pArchives);
-            for (PArchive pArchive : pArchives) {
-                // delete the temporary extracted file
-                pArchive.getFile().delete();
+        for (PFile pFile : replacePFiles) {
+            if (pFile.isArchiveFile()) {
+                // delete the temporary extracted content
+                pFile.deleteContent();
             }
         }
     }
 
+    /**
+     * Rewrites the archive in one pass. The entries are kept in their order, so a manifest stays the first entry. Files which are not in the
+     * archive yet are appended.
+     */
     public static void replaceFilesInArchive(File archive, String archiveType, Map<String, File> filesToReplace) {
-        ArchiveStreamFactory factory = new ArchiveStreamFactory();
+        ArchiveChanges changes = new ArchiveChanges(archiveType);
+        for (String filePath : filesToReplace.keySet()) {
+            changes.entries.put(filePath, new EntryContent(filesToReplace.get(filePath)));
+        }
 
-        File manifest = null;
-        InputStream archiveStream = null;
-        ArchiveInputStream ais = null;
-        ArchiveOutputStream aos = null;
-        List<FileInputStream> streamsToClose = new ArrayList<FileInputStream>();
+        replaceEntriesInArchive(archive, archiveType, changes);
+    }
 
-        File tmpArchive = FileUtils.createEmptyFileWithSamePermissions(archive);
+    ////////////////////////////// PRIVAT Stuff
+    /**
+     * The entries are looked up in the central directory of the zip, only the requested entries are read. The entries of a child archive are
+     * read as a nested stream.
+     */
+    private static void extractPFilesFromZip(PArchive pArchive, Map<PFile, List<PFile>> result) {
+        EntryRequests requests = new EntryRequests(Collections.singletonList(pArchive));
+        Map<String, EntryContent> extractedEntries = new LinkedHashMap<String, EntryContent>();
 
+        ZipFile zipFile = null;
         try {
-            aos = factory.createArchiveOutputStream(archiveType, new FileOutputStream(tmpArchive));
-            ChangeSet changes = new ChangeSet();
+            zipFile = new ZipFile(pArchive.getFile());
+
+            byte[] buffer = new byte[BUFFER_SIZE];
 
-            if (ArchiveStreamFactory.JAR.equalsIgnoreCase(archiveType)) {
-                manifest = manifestWorkaround(archive, archiveType, aos, changes, streamsToClose);
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+
+                List<PArchive> childArchives = requests.childArchives.get(entry.getName());
+                if (childArchives == null && !requests.isRequested(entry.getName())) {
+                    continue;
+                }
+
+                InputStream is = new BufferedInputStream(zipFile.getInputStream(entry), BUFFER_SIZE);
+                try {
+                    if (childArchives != null) {
+                        extractPFiles(childArchives, pArchive.getFile(), is, result);
+                    } else {
+                        extractedEntries.put(entry.getName(), extractEntry(pArchive.getFile(), entry, is, IN_MEMORY_THRESHOLD, buffer));
+                    }
+                } finally {
+                    is.close();
+                }
             }
+        } catch (ArchiveException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            ZipFile.closeQuietly(zipFile);
+        }
+
+        handOut(pArchive.getFile(), requests, extractedEntries, result);
+    }
+
+    /**
+     * @param pArchives
+     *            the archives with the same relative path, their pfiles are resolved from the same entry.
+     */
+    private static void extractPFiles(List<PArchive> pArchives, File rootArchive, InputStream is, Map<PFile, List<PFile>> result)
+            throws ArchiveException, IOException {
+        EntryRequests requests = new EntryRequests(pArchives);
+        Map<String, EntryContent> extractedEntries = new LinkedHashMap<String, EntryContent>();
+
+        ArchiveStreamFactory factory = new ArchiveStreamFactory();
+        // the stream belongs to the caller, so closing the archive stream must not close it
+        ArchiveInputStream ais = factory.createArchiveInputStream(pArchives.get(0).getType(), CloseShieldInputStream.wrap(is));
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
 
-            for (String filePath : filesToReplace.keySet()) {
-                File replaceWithFile = filesToReplace.get(filePath);
+            ArchiveEntry entry;
+            while ((entry = ais.getNextEntry()) != null) {
+                List<PArchive> childArchives = requests.childArchives.get(entry.getName());
+                if (childArchives != null) {
+                    extractPFiles(childArchives, rootArchive, ais, result);
+                    continue;
+                }
 
-                ArchiveEntry archiveEntry = aos.createArchiveEntry(replaceWithFile, filePath);
-                FileInputStream fis = new FileInputStream(replaceWithFile);
-                streamsToClose.add(fis);
-                changes.add(archiveEntry, fis, true);
+                if (!requests.isRequested(entry.getName())) {
+                    continue;
+                }
+                extractedEntries.put(entry.getName(), extractEntry(rootArchive, entry, ais, IN_MEMORY_THRESHOLD, buffer));
             }
+        } finally {
+            IOUtils.closeQuietly(ais);
+        }
+
+        handOut(rootArchive, requests, extractedEntries, result);
+    }
+
+    /**
+     * Hands the extracted entries out to the requesting pfiles. Every pfile gets its own file, like it would be extracted separately.
+     */
+    private static void handOut(File rootArchive, EntryRequests requests, Map<String, EntryContent> extractedEntries, Map<PFile, List<PFile>> result) {
+        Set<File> handedOut = new HashSet<File>();
+
+        for (PFile pFile : requests.pFiles) {
+            List<PFile> resolved = new ArrayList<PFile>();
+
+            Pattern regExp = requests.regExps.get(pFile);
+            if (regExp != null) {
+                for (String relativePath : extractedEntries.keySet()) {
+                    if (!matches(relativePath, regExp)) {
+                        continue;
+                    }
+                    PFile aClone = ModelUtils.clonePFile(pFile, relativePath, null);
+                    handOut(rootArchive, extractedEntries.get(relativePath), aClone, handedOut);
+                    resolved.add(aClone);
+                }
+            } else if (!pFile.hasContent() && extractedEntries.containsKey(pFile.getRelativePath())) {
+                handOut(rootArchive, extractedEntries.get(pFile.getRelativePath()), pFile, handedOut);
+            }
+
+            // if we can't resolve the regular expression, return the given pfile
+            if (resolved.isEmpty()) {
+                resolved.add(pFile);
+            }
+            result.put(pFile, resolved);
+        }
+    }
+
+    /**
+     * @return the changes of the archive, the changes of its parent archives are created as well.
+     */
+    private static ArchiveChanges getArchiveChanges(PArchive pArchive, Map<PArchive, ArchiveChanges> changesPerArchive) {
+        if (!pArchive.isArchiveFile()) {
+            if (!changesPerArchive.containsKey(pArchive)) {
+                changesPerArchive.put(pArchive, new ArchiveChanges(pArchive.getType()));
+            }
+            return changesPerArchive.get(pArchive);
+        }
+
+        ArchiveChanges parentChanges = getArchiveChanges(pArchive.getParentArchive(), changesPerArchive);
+        if (!parentChanges.archives.containsKey(pArchive.getRelativePath())) {
+            parentChanges.archives.put(pArchive.getRelativePath(), new ArchiveChanges(pArchive.getType()));
+        }
+        return parentChanges.archives.get(pArchive.getRelativePath());
+    }
+
+    private static void replaceEntriesInArchive(File archive, String archiveType, ArchiveChanges changes) {
+        File tmpArchive = FileUtils.createSiblingFileWithSamePermissions(archive);
+
+        try {
+            if (isZipType(archiveType)) {
+                rewriteZipArchive(archive, tmpArchive, changes);
+            } else {
+                rewriteArchive(archive, archiveType, tmpArchive, changes);
+            }
+
+            FileUtils.replaceFile(tmpArchive, archive);
+        } finally {
+            // only there if something went wrong
+            org.apache.commons.io.FileUtils.deleteQuietly(tmpArchive);
+        }
+    }
+
+    private static void rewriteZipArchive(File archive, File tmpArchive, ArchiveChanges changes) {
+        ZipFile zipFile = null;
+        ZipArchiveOutputStream zos = null;
+
+        try {
+            zipFile = new ZipFile(archive);
+            zos = new ZipArchiveOutputStream(tmpArchive);
+
+            rewriteZip(zipFile, zos, archive, changes, new byte[BUFFER_SIZE]);
 
-            archiveStream = new FileInputStream(archive);
-            ais = factory.createArchiveInputStream(archiveType, archiveStream);
+            zos.close();
+        } catch (ArchiveException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            IOUtils.closeQuietly(zos);
+            ZipFile.closeQuietly(zipFile);
+        }
+    }
 
-            ChangeSetPerformer performer = new ChangeSetPerformer(changes);
-            performer.perform(ais, aos);
+    private static void rewriteArchive(File archive, String archiveType, File tmpArchive, ArchiveChanges changes) {
+        ArchiveStreamFactory factory = new ArchiveStreamFactory();
 
+        ArchiveInputStream ais = null;
+        ArchiveOutputStream aos = null;
+
+        try {
+            ais = factory.createArchiveInputStream(archiveType, new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE));
+            aos = factory.createArchiveOutputStream(archiveType, new BufferedOutputStream(new FileOutputStream(tmpArchive), BUFFER_SIZE));
+
+            rewriteStream(ais, aos, archive, changes, new byte[BUFFER_SIZE]);
+
+            aos.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         } catch (ArchiveException e) {
             throw new RuntimeException(e);
         } finally {
-            for (FileInputStream fis : streamsToClose) {
-                IOUtils.closeQuietly(fis);
-            }
             IOUtils.closeQuietly(aos);
             IOUtils.closeQuietly(ais);
-            IOUtils.closeQuietly(archiveStream);
+        }
+    }
+
+    /**
+     * The unchanged entries are copied raw, they are neither decompressed nor compressed again. Only the replaced entries are deflated.
+     */
+    private static void rewriteZip(ZipFile zipFile, ZipArchiveOutputStream zos, File rootArchive, ArchiveChanges changes, byte[] buffer)
+            throws ArchiveException, IOException {
+        Set<String> replaced = new HashSet<String>();
+
+        Enumeration<ZipArchiveEntry> entries = zipFile.getEntriesInPhysicalOrder();
+        while (entries.hasMoreElements()) {
+            ZipArchiveEntry entry = entries.nextElement();
+
+            EntryContent replaceWith = changes.entries.get(entry.getName());
+            ArchiveChanges childChanges = changes.archives.get(entry.getName());
+            if (replaceWith == null && childChanges == null) {
+                try (InputStream raw = zipFile.getRawInputStream(entry)) {
+                    zos.addRawArchiveEntry(entry, raw);
+                }
+                continue;
+            }
+
+            // the entry is replaced only once, like a change set would do it
+            if (!replaced.add(entry.getName())) {
+                continue;
+            }
+            if (replaceWith != null) {
+                addEntry(zos, replaceWith, entry.getName(), buffer);
+            } else {
+                InputStream is = zipFile.getInputStream(entry);
+                try {
+                    rewriteChildArchive(entry, is, zos, rootArchive, childChanges, buffer);
+                } finally {
+                    is.close();
+                }
+            }
+        }
+
+        addMissingEntries(zos, changes, replaced, buffer);
+    }
+
+    private static void rewriteStream(ArchiveInputStream ais, ArchiveOutputStream aos, File rootArchive, ArchiveChanges changes, byte[] buffer)
+            throws ArchiveException, IOException {
+        Set<String> replaced = new HashSet<String>();
+
+        ArchiveEntry entry;
+        while ((entry = ais.getNextEntry()) != null) {
+            EntryContent replaceWith = changes.entries.get(entry.getName());
+            ArchiveChanges childChanges = changes.archives.get(entry.getName());
+            if (replaceWith == null && childChanges == null) {
+                aos.putArchiveEntry(entry);
+                IOUtils.copyLarge(ais, aos, buffer);
+                aos.closeArchiveEntry();
+                continue;
+            }
+
+            // the entry is replaced only once, like a change set would do it
+            if (!replaced.add(entry.getName())) {
+                continue;
+            }
+            if (replaceWith != null) {
+                addEntry(aos, replaceWith, entry.getName(), buffer);
+            } else {
+                rewriteChildArchive(entry, ais, aos, rootArchive, childChanges, buffer);
+            }
+        }
+
+        addMissingEntries(aos, changes, replaced, buffer);
+    }
+
+    private static void addMissingEntries(ArchiveOutputStream aos, ArchiveChanges changes, Set<String> replaced, byte[] buffer) throws IOException {
+        for (String filePath : changes.entries.keySet()) {
+            if (!replaced.contains(filePath)) {
+                addEntry(aos, changes.entries.get(filePath), filePath, buffer);
+            }
+        }
+    }
+
+    /**
+     * Rewrites a child archive while its parent is written. A small child archive is rewritten in memory, so the unchanged entries of a zip
+     * can be copied raw. A large one is rewritten from the input stream directly into the output stream, if the output allows entries of
+     * unknown size.
+     */
+    private static void rewriteChildArchive(ArchiveEntry entry, InputStream is, ArchiveOutputStream aos, File rootArchive, ArchiveChanges changes,
+            byte[] buffer) throws ArchiveException, IOException {
+        if (entry.getSize() != ArchiveEntry.SIZE_UNKNOWN && entry.getSize() <= NESTED_ARCHIVE_IN_MEMORY_THRESHOLD) {
+            byte[] content = rewriteInMemory(IOUtils.toByteArray(is), rootArchive, changes, buffer);
+            writeEntry(aos, createChildArchiveEntry(aos, entry, content.length, content), new EntryContent(content), buffer);
+            return;
+        }
+
+        if (!(aos instanceof ZipArchiveOutputStream)) {
+            // the size of the entry has to be known in advance, the file is next to the archive which is written
+            File tmpFile = FileUtils.createSiblingFileWithSamePermissions(rootArchive);
+            try {
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE);
+                try {
+                    rewriteNestedArchive(is, os, rootArchive, changes, buffer);
+                } finally {
+                    os.close();
+                }
+                EntryContent rewritten = new EntryContent(tmpFile);
+                writeEntry(aos, createChildArchiveEntry(aos, entry, tmpFile.length(), null), rewritten, buffer);
+            } finally {
+                org.apache.commons.io.FileUtils.deleteQuietly(tmpFile);
+            }
+            return;
+        }
+
+        aos.putArchiveEntry(createChildArchiveEntry(aos, entry, ArchiveEntry.SIZE_UNKNOWN, null));
+        rewriteNestedArchive(is, aos, rootArchive, changes, buffer);
+        aos.closeArchiveEntry();
+    }
+
+    private static byte[] rewriteInMemory(byte[] archive, File rootArchive, ArchiveChanges changes, byte[] buffer) throws ArchiveException, IOException {
+        if (!isZipType(changes.type)) {
+            ByteArrayOutputStream result = new ByteArrayOutputStream(archive.length);
+            rewriteNestedArchive(new ByteArrayInputStream(archive), result, rootArchive, changes, buffer);
+            return result.toByteArray();
         }
 
-        if (manifest != null) {
-            manifest.delete();
+        SeekableInMemoryByteChannel result = new SeekableInMemoryByteChannel();
+
+        ZipFile zipFile = new ZipFile(new SeekableInMemoryByteChannel(archive));
+        try {
+            ZipArchiveOutputStream zos = new ZipArchiveOutputStream(result);
+            rewriteZip(zipFile, zos, rootArchive, changes, buffer);
+            zos.close();
+        } finally {
+            ZipFile.closeQuietly(zipFile);
         }
 
-        FileUtils.deleteFile(archive);
-        
+        return Arrays.copyOf(result.array(), (int) result.size());
+    }
+
+    private static void rewriteNestedArchive(InputStream is, OutputStream os, File rootArchive, ArchiveChanges changes, byte[] buffer)
+            throws ArchiveException, IOException {
+        ArchiveStreamFactory factory = new ArchiveStreamFactory();
+
+        // both streams belong to the parent archive, so we only finish the child archive
+        ArchiveInputStream ais = factory.createArchiveInputStream(changes.type, CloseShieldInputStream.wrap(is));
+        ArchiveOutputStream aos = factory.createArchiveOutputStream(changes.type, CloseShieldOutputStream.wrap(os));
         try {
-			org.apache.commons.io.FileUtils.moveFile(tmpArchive, archive);
-		} catch (IOException e) {
-			throw new RuntimeException("Couldn't rename filtered file from [" + tmpArchive.getPath() + "] to [" + archive.getPath() + "]... Aborting!", e);
-		}
+            rewriteStream(ais, aos, rootArchive, changes, buffer);
+            aos.finish();
+        } finally {
+            IOUtils.closeQuietly(aos);
+            IOUtils.closeQuietly(ais);
+        }
+    }
+
+    private static boolean isZipType(String archiveType) {
+        return ArchiveStreamFactory.ZIP.equalsIgnoreCase(archiveType) || ArchiveStreamFactory.JAR.equalsIgnoreCase(archiveType);
     }
 
-    ////////////////////////////// PRIVAT Stuff
     private static Map<String, File> extractFiles(File archive, String archiveType, String searchFor, Boolean isRegExp) {
-        Map<String, File> result = new HashMap<String, File>();
+        if (isZipType(archiveType)) {
+            return extractFilesFromZip(archive, searchFor, isRegExp);
+        }
+
+        Map<String, File> result = new LinkedHashMap<String, File>();
 
         ArchiveInputStream ais = null;
         try {
             ArchiveStreamFactory factory = new ArchiveStreamFactory();
 
-            ais = factory.createArchiveInputStream(archiveType, new FileInputStream(archive));
+            ais = factory.createArchiveInputStream(archiveType, new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE));
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            Pattern regExp = isRegExp ? Pattern.compile(searchFor) : null;
 
             ArchiveEntry entry;
             while ((entry = ais.getNextEntry()) != null) {
                 if (isRegExp) {
-                    if (!matches(entry.getName(), searchFor)) {
+                    if (!matches(entry.getName(), regExp)) {
                         continue;
                     }
                 } else if (!searchFor.equals(entry.getName())) {
                     continue;
                 }
 
-                File physicalFile = FileUtils.createEmptyFileWithSamePermissions(archive,
-                        archive.getName() + "!" + Paths.get(entry.getName()).getFileName().toString() + "_");
-
-                BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(physicalFile));
-
-                byte[] content = new byte[2048];
-
-                int len;
-                while ((len = ais.read(content)) != -1) {
-                    bos.write(content, 0, len);
-                }
-
-                bos.close();
-                content = null;
-
-                result.put(entry.getName(), physicalFile);
+                result.put(entry.getName(), extractEntry(archive, entry, ais, -1, buffer).file);
             }
         } catch (ArchiveException e) {
             throw new RuntimeException(e);
@@ -305,120 +657,306 @@ public class ArchiveUtils {
         return result;
     }
 
-    private static Boolean archiveContainsFile(File archive, String archiveType, String fileToLookFor) {
-        ArchiveInputStream ais = null;
-        try {
-            ArchiveStreamFactory factory = new ArchiveStreamFactory();
-
-            ais = factory.createArchiveInputStream(archiveType, new FileInputStream(archive));
+    /**
+     * The entries are looked up in the central directory of the zip, so only the matching entries are decompressed.
+     */
+    private static Map<String, File> extractFilesFromZip(File archive, String searchFor, Boolean isRegExp) {
+        Map<String, File> result = new LinkedHashMap<String, File>();
 
-            ArchiveEntry entry;
-            while ((entry = ais.getNextEntry()) != null) {
-                if (fileToLookFor.equals(entry.getName())) {
-                    return Boolean.TRUE;
+        ZipFile zipFile = null;
+        try {
+            zipFile = new ZipFile(archive);
+
+            List<ZipArchiveEntry> entries = new ArrayList<ZipArchiveEntry>();
+            if (isRegExp) {
+                Pattern regExp = Pattern.compile(searchFor);
+                for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+                    if (matches(entry.getName(), regExp)) {
+                        entries.add(entry);
+                    }
                 }
+            } else if (zipFile.getEntry(searchFor) != null) {
+                entries.add(zipFile.getEntry(searchFor));
             }
 
-            return Boolean.FALSE;
-        } catch (ArchiveException e) {
-            throw new RuntimeException(e);
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (ZipArchiveEntry entry : entries) {
+                InputStream is = zipFile.getInputStream(entry);
+                try {
+                    result.put(entry.getName(), extractToFile(archive, entry, null, is, buffer));
+                } finally {
+                    is.close();
+                }
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
-            IOUtils.closeQuietly(ais);
+            ZipFile.closeQuietly(zipFile);
         }
+
+        return result;
     }
 
-    // if the archive contains a manifest, we have to simulate a change, otherwise
-    // the manifest isn't the first entry anymore.
-    private static File manifestWorkaround(File archive, String archiveType, ArchiveOutputStream aos, ChangeSet changes, List<FileInputStream> streamsToClose)
+    /**
+     * Entries up to inMemoryThreshold bytes are kept in memory, larger ones are extracted to a file.
+     * 
+     * @param inMemoryThreshold
+     *            -1 if the entry should be extracted to a file.
+     */
+    private static EntryContent extractEntry(File archive, ArchiveEntry entry, InputStream is, int inMemoryThreshold, byte[] buffer)
             throws IOException {
-        String manifestPath = "META-INF/MANIFEST.MF";
+        if (inMemoryThreshold < 0 || entry.getSize() > inMemoryThreshold) {
+            return new EntryContent(extractToFile(archive, entry, null, is, buffer));
+        }
 
-        if (!archiveContainsFile(archive, archiveType, manifestPath)) {
-            return null;
+        // the size is not always known in advance, so we spill to a file if the entry is too large
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        long length = IOUtils.copyLarge(is, content, 0, inMemoryThreshold + 1, buffer);
+        if (length <= inMemoryThreshold) {
+            return new EntryContent(content.toByteArray());
         }
+        return new EntryContent(extractToFile(archive, entry, content, is, buffer));
+    }
 
-        File originalManifestFile = extractFile(archive, archiveType, manifestPath);
+    /**
+     * @param alreadyRead
+     *            the start of the entry which was read already, could be null.
+     */
+    private static File extractToFile(File archive, ArchiveEntry entry, ByteArrayOutputStream alreadyRead, InputStream is, byte[] buffer)
+            throws IOException {
+        // next to the archive, so it is on the same file system as the archive which is written later
+        File physicalFile = FileUtils.createSiblingFileWithSamePermissions(archive,
+                "." + archive.getName() + "!" + Paths.get(entry.getName()).getFileName().toString() + "_");
 
-        ArchiveEntry archiveEntry = aos.createArchiveEntry(originalManifestFile, manifestPath);
-        FileInputStream fis = new FileInputStream(originalManifestFile);
-        streamsToClose.add(fis);
-        changes.add(archiveEntry, fis, true);
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(physicalFile), BUFFER_SIZE);
+        try {
+            if (alreadyRead != null) {
+                alreadyRead.writeTo(os);
+            }
+            IOUtils.copyLarge(is, os, buffer);
+        } finally {
+            os.close();
+        }
+        return physicalFile;
+    }
 
-        return originalManifestFile;
+    /**
+     * Hands the extracted content over to the pfile. Content in memory is never modified, so it can be shared.
+     */
+    private static void handOut(File archive, EntryContent entryContent, PFile pFile, Set<File> handedOut) {
+        if (entryContent.content != null) {
+            pFile.setContent(entryContent.content);
+        } else {
+            pFile.setFile(handOut(archive, entryContent.file, handedOut));
+        }
     }
 
-    private static Boolean matches(String pathName, String regEx) {
-        Path path = FileSystems.getDefault().getPath(pathName);
-        return FileUtils.matches(path, regEx);
+    /**
+     * Returns the extracted file for the first requester, all others get a copy of it.
+     */
+    private static File handOut(File archive, File extractedFile, Set<File> handedOut) {
+        if (extractedFile == null || handedOut.add(extractedFile)) {
+            return extractedFile;
+        }
+
+        File copy = FileUtils.createSiblingFileWithSamePermissions(archive, extractedFile.getName());
+        try {
+            org.apache.commons.io.FileUtils.copyFile(extractedFile, copy);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return copy;
     }
 
-    private static Map<PArchive, List<PFile>> getPFilesToReplace(List<PFile> replacePFiles) {
-        Map<PArchive, List<PFile>> pFilesToReplace = new HashMap<PArchive, List<PFile>>();
-        for (PFile pFile : replacePFiles) {
-            if (!pFile.isArchiveFile()) {
-                continue;
-            }
-            PArchive pArchive = pFile.getPArchive();
-            if (!pFilesToReplace.containsKey(pArchive)) {
-                pFilesToReplace.put(pArchive, new ArrayList<PFile>());
-            }
-            List<PFile> pFiles = pFilesToReplace.get(pArchive);
-            pFiles.add(pFile);
+    private static void addEntry(ArchiveOutputStream aos, EntryContent entryContent, String filePath, byte[] buffer) throws IOException {
+        ArchiveEntry archiveEntry;
+        if (entryContent.file != null) {
+            archiveEntry = aos.createArchiveEntry(entryContent.file, filePath);
+        } else {
+            archiveEntry = createArchiveEntry(aos, filePath, entryContent.content.length);
         }
-        return pFilesToReplace;
+        writeEntry(aos, archiveEntry, entryContent, buffer);
     }
 
-    private static LinkedHashMap<PArchive, List<PArchive>> getParentArchives(List<PFile> replacePFiles) {
-        LinkedHashMap<PArchive, List<PArchive>> parentArchives = new LinkedHashMap<PArchive, List<PArchive>>();
-        // for performance get first all archives in an archive
-        for (PFile pFile : replacePFiles) {
-            if (!pFile.isArchiveFile()) {
-                continue;
+    private static void writeEntry(ArchiveOutputStream aos, ArchiveEntry archiveEntry, EntryContent entryContent, byte[] buffer) throws IOException {
+        aos.putArchiveEntry(archiveEntry);
+
+        InputStream is = entryContent.openInputStream();
+        try {
+            IOUtils.copyLarge(is, aos, buffer);
+        } finally {
+            is.close();
+        }
+        aos.closeArchiveEntry();
+    }
+
+    private static ArchiveEntry createArchiveEntry(ArchiveOutputStream aos, String filePath, long size) {
+        if (aos instanceof ZipArchiveOutputStream) {
+            ZipArchiveEntry zipEntry = new ZipArchiveEntry(filePath);
+            zipEntry.setSize(size);
+            zipEntry.setTime(System.currentTimeMillis());
+            return zipEntry;
+        }
+        if (aos instanceof TarArchiveOutputStream) {
+            TarArchiveEntry tarEntry = new TarArchiveEntry(filePath);
+            tarEntry.setSize(size);
+            tarEntry.setModTime(System.currentTimeMillis());
+            return tarEntry;
+        }
+        throw new IllegalArgumentException("Archive type not supported [" + aos.getClass().getName() + "]");
+    }
+
+    /**
+     * Creates the entry of a rewritten child archive, the name, the modification time and a stored zip entry are kept.
+     * 
+     * @param content
+     *            the rewritten child archive if it is held in memory, otherwise null.
+     */
+    private static ArchiveEntry createChildArchiveEntry(ArchiveOutputStream aos, ArchiveEntry entry, long size, byte[] content) {
+        if (aos instanceof ZipArchiveOutputStream) {
+            ZipArchiveEntry zipEntry = new ZipArchiveEntry(entry.getName());
+            zipEntry.setTime(entry.getLastModifiedDate().getTime());
+            zipEntry.setMethod(ZipEntry.DEFLATED);
+            if (size != ArchiveEntry.SIZE_UNKNOWN) {
+                zipEntry.setSize(size);
             }
-            PArchive pArchive = pFile.getPArchive();
-            if (!pArchive.isArchiveFile()) {
-                continue;
+
+            boolean stored = entry instanceof ZipArchiveEntry && ((ZipArchiveEntry) entry).getMethod() == ZipEntry.STORED;
+            if (stored && content != null) {
+                CRC32 crc = new CRC32();
+                crc.update(content);
+                zipEntry.setCrc(crc.getValue());
+                zipEntry.setMethod(ZipEntry.STORED);
+            } else if (stored && ((ZipArchiveOutputStream) aos).isSeekable()) {
+                // the checksum is written afterwards
+                zipEntry.setMethod(ZipEntry.STORED);
             }
-            if (!parentArchives.containsKey(pArchive.getParentArchive())) {
-                parentArchives.put(pArchive.getParentArchive(), new ArrayList<PArchive>());
+            return zipEntry;
+        }
+        if (aos instanceof TarArchiveOutputStream) {
+            // the entry of the input stream must not be changed, the stream needs its size to find the next entry
+            TarArchiveEntry tarEntry = new TarArchiveEntry(entry.getName());
+            if (entry instanceof TarArchiveEntry) {
+                TarArchiveEntry original = (TarArchiveEntry) entry;
+                tarEntry.setMode(original.getMode());
+                tarEntry.setUserId(original.getLongUserId());
+                tarEntry.setGroupId(original.getLongGroupId());
+                tarEntry.setUserName(original.getUserName());
+                tarEntry.setGroupName(original.getGroupName());
             }
-            List<PArchive> pArchivesToReplace = parentArchives.get(pArchive.getParentArchive());
-            if (!pArchivesToReplace.contains(pArchive)) {
-                pArchivesToReplace.add(pArchive);
+            tarEntry.setSize(size);
+            tarEntry.setModTime(entry.getLastModifiedDate());
+            return tarEntry;
+        }
+        throw new IllegalArgumentException("Archive type not supported [" + aos.getClass().getName() + "]");
+    }
+
+    private static boolean matchesOne(String pathName, Collection<Pattern> regExps) {
+        for (Pattern regExp : regExps) {
+            if (matches(pathName, regExp)) {
+                return true;
             }
         }
-        return parentArchives;
+        return false;
     }
 
-    private static void replacePFilesInArchive(PArchive pArchive, List<PFile> replaceFiles) {
+    private static Boolean matches(String pathName, Pattern regEx) {
+        Path path = FileSystems.getDefault().getPath(pathName);
+        return FileUtils.matches(path, regEx);
+    }
 
-        Map<String, File> filesToReplace = new HashMap<String, File>();
+    /**
+     * The entries of an archive which are requested by its pfiles and its child archives. The regular expressions are compiled only once. Child
+     * archives with the same relative path are kept together, so the entry is read once and all their pfiles are resolved.
+     */
+    private static class EntryRequests {
 
-        for (PFile pFile : replaceFiles) {
-            String filePath = pFile.getRelativePath();
-            File replaceWithFile = pFile.getFile();
+        private List<PFile>                 pFiles        = new ArrayList<PFile>();
+        private Set<String>                 relativePaths = new HashSet<String>();
+        private Map<PFile, Pattern>         regExps       = new IdentityHashMap<PFile, Pattern>();
+        private Map<String, List<PArchive>> childArchives = new HashMap<String, List<PArchive>>();
 
-            filesToReplace.put(filePath, replaceWithFile);
+        public EntryRequests(List<PArchive> pArchives) {
+            for (PArchive pArchive : pArchives) {
+                for (Object entry : pArchive.getFilesAndArchives()) {
+                    if (entry instanceof PFile) {
+                        addPFile((PFile) entry);
+                    } else if (entry instanceof PArchive) {
+                        addChildArchive((PArchive) entry);
+                    }
+                }
+            }
         }
 
-        replaceFilesInArchive(pArchive.getFile(), pArchive.getType(), filesToReplace);
+        private void addPFile(PFile pFile) {
+            pFiles.add(pFile);
+            if (pFile.hasContent()) {
+                return;
+            }
+            if (pFile.isUseRegExResolution()) {
+                regExps.put(pFile, Pattern.compile(pFile.getRelativePath()));
+            } else {
+                relativePaths.add(pFile.getRelativePath());
+            }
+        }
+
+        private void addChildArchive(PArchive childArchive) {
+            // this is checked via an validator.
+            if (!isArchiveAndIsSupported(childArchive.getRelativePath())) {
+                return;
+            }
+            childArchive.setType(getArchiveType(childArchive));
+
+            // a duplicate is reported by a validator as well, but its pfiles must be resolved anyway
+            List<PArchive> sameEntry = childArchives.get(childArchive.getRelativePath());
+            if (sameEntry == null) {
+                sameEntry = new ArrayList<PArchive>();
+                childArchives.put(childArchive.getRelativePath(), sameEntry);
+            }
+            sameEntry.add(childArchive);
+        }
+
+        public boolean isRequested(String entryName) {
+            return relativePaths.contains(entryName) || matchesOne(entryName, regExps.values());
+        }
+    }
+
+    /**
+     * The entries to replace in an archive and the changes of its child archives.
+     */
+    private static class ArchiveChanges {
+
+        private String                      type;
+        private Map<String, EntryContent>   entries  = new LinkedHashMap<String, EntryContent>();
+        private Map<String, ArchiveChanges> archives = new LinkedHashMap<String, ArchiveChanges>();
+
+        public ArchiveChanges(String type) {
+            this.type = type;
+        }
     }
 
-    private static void replacePArchivesInArchive(PArchive parentArchive, List<PArchive> replaceFiles) {
-        Map<String, File> filesToReplace = new HashMap<String, File>();
+    /**
+     * The content of an archive entry, either a file or the bytes held in memory.
+     */
+    private static class EntryContent {
 
-        for (PArchive pArchive : replaceFiles) {
-            String filePath = pArchive.getRelativePath();
-            File replaceWithFile = pArchive.getFile();
+        private File   file;
+        private byte[] content;
 
-            filesToReplace.put(filePath, replaceWithFile);
+        public EntryContent(File file) {
+            this.file = file;
         }
 
-        replaceFilesInArchive(parentArchive.getFile(), parentArchive.getType(), filesToReplace);
+        public EntryContent(byte[] content) {
+            this.content = content;
+        }
+
+        public InputStream openInputStream() throws IOException {
+            if (content != null) {
+                return new ByteArrayInputStream(content);
+            }
+            return new FileInputStream(file);
+        }
     }
 
 }
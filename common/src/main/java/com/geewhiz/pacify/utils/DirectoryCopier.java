@@ -0,0 +1,297 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.common
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Copies a directory with a pool of threads. Each directory is a task of its own and its files are copied in batches, so a directory with a lot
+ * of files is copied by more than one thread. The pool size bounds the number of files which are copied at the same time. Large files are copied via {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, so the kernel
+ * can copy them without passing the content through the java heap. The permissions and modification times are preserved.
+ */
+public class DirectoryCopier {
+
+    private static final long TRANSFER_THRESHOLD = 1024 * 1024;
+    private static final int  BATCH_SIZE         = 32;
+
+    private Logger            logger             = LogManager.getLogger(DirectoryCopier.class.getName());
+
+    private int               threadCount        = 1;
+    private Set<Path>         pathsToCopy;
+    private Set<Object>       fileKeysToCopy;
+
+    private AtomicLong        copiedFiles        = new AtomicLong();
+    private AtomicLong        copiedBytes        = new AtomicLong();
+    private AtomicLong        linkedFiles        = new AtomicLong();
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1 but was [" + threadCount + "]");
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Only the given files are copied, all other files are hard links to the source, so they share their content with it. If a file can't be
+     * linked, e.g. the target is on another file system, it is copied too. Without this, every file is copied.
+     */
+    public void setFilesToCopy(Set<File> filesToCopy) {
+        pathsToCopy = new HashSet<Path>();
+        fileKeysToCopy = new HashSet<Object>();
+        for (File file : filesToCopy) {
+            pathsToCopy.add(normalize(file));
+
+            Object fileKey = getFileKey(file.toPath());
+            if (fileKey != null) {
+                fileKeysToCopy.add(fileKey);
+            }
+        }
+    }
+
+    public void copy(File sourceDir, File targetDir) throws IOException {
+        long start = System.currentTimeMillis();
+
+        ForkJoinPool pool = new ForkJoinPool(getThreadCount());
+        try {
+            pool.invoke(new CopyTask(normalize(sourceDir), normalize(targetDir)));
+        } catch (CopyException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        logThroughput(System.currentTimeMillis() - start);
+    }
+
+    private void logThroughput(long millis) {
+        double seconds = Math.max(millis, 1) / 1000d;
+        double megaBytes = copiedBytes.get() / (1024d * 1024d);
+
+        logger.info("   Copied [{}] files ([{}] MB) in [{}] ms, [{}] files/s, [{}] MB/s.", copiedFiles.get(), String.format("%.1f", megaBytes), millis,
+                String.format("%.0f", copiedFiles.get() / seconds), String.format("%.1f", megaBytes / seconds));
+        if (pathsToCopy != null) {
+            logger.info("   Linked [{}] files.", linkedFiles.get());
+        }
+    }
+
+    private void copyFile(Path source, Path target) throws IOException {
+        // a hard link to a symbolic link is not portable
+        if (pathsToCopy != null && !isToCopy(source) && !Files.isSymbolicLink(source)) {
+            try {
+                Files.createLink(target, source);
+                linkedFiles.incrementAndGet();
+                return;
+            } catch (IOException e) {
+                logger.debug("Couldn't link [" + target + "] to [" + source + "], copying it.", e);
+            } catch (UnsupportedOperationException e) {
+                logger.debug("Couldn't link [" + target + "] to [" + source + "], copying it.", e);
+            }
+        }
+
+        long size = Files.size(source);
+        if (size < TRANSFER_THRESHOLD) {
+            Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+        } else {
+            transfer(source, target, size);
+            copyAttributes(source, target);
+        }
+
+        copiedFiles.incrementAndGet();
+        copiedBytes.addAndGet(size);
+    }
+
+    /**
+     * The same file can be reached via another path, e.g. a symbolic link to its folder or a hard link within the package. So the file keys
+     * are compared too, a file which is written by the run must never be linked.
+     */
+    private boolean isToCopy(Path source) {
+        if (pathsToCopy.contains(source)) {
+            return true;
+        }
+        Object fileKey = getFileKey(source);
+        return fileKey != null && fileKeysToCopy.contains(fileKey);
+    }
+
+    /**
+     * @return the key of the file or null if the file system has none or the file doesn't exist.
+     */
+    private static Object getFileKey(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void transfer(Path source, Path target, long size) throws IOException {
+        FileInputStream is = null;
+        FileOutputStream os = null;
+        try {
+            is = new FileInputStream(source.toFile());
+            os = new FileOutputStream(target.toFile());
+
+            FileChannel in = is.getChannel();
+            FileChannel out = os.getChannel();
+
+            // transferTo may copy less than requested
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            os.close();
+        } finally {
+            IOUtils.closeQuietly(is);
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    private void copyAttributes(Path source, Path target) throws IOException {
+        FileUtils.setPosixPermissions(FileUtils.getPosixPermissions(source.toFile()), target.toFile());
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        Files.setLastModifiedTime(target, attributes.lastModifiedTime());
+    }
+
+    private static Path normalize(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    private class CopyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private Path              source;
+        private Path              target;
+
+        private CopyTask(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (!Files.isDirectory(source)) {
+                    copyFile(source, target);
+                    return;
+                }
+
+                if (!Files.exists(target)) {
+                    Files.createDirectories(target);
+                }
+
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                List<String> batch = new ArrayList<String>();
+                for (String child : source.toFile().list()) {
+                    Path childSource = source.resolve(child);
+                    if (Files.isDirectory(childSource)) {
+                        tasks.add(new CopyTask(childSource, target.resolve(child)));
+                        continue;
+                    }
+
+                    // a large file takes as long as a whole batch of small ones, so it is a batch of its own
+                    if (childSource.toFile().length() >= TRANSFER_THRESHOLD) {
+                        tasks.add(new CopyFilesTask(source, target, Collections.singletonList(child)));
+                        continue;
+                    }
+
+                    batch.add(child);
+                    if (batch.size() == BATCH_SIZE) {
+                        tasks.add(new CopyFilesTask(source, target, batch));
+                        batch = new ArrayList<String>();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    tasks.add(new CopyFilesTask(source, target, batch));
+                }
+                invokeAll(tasks);
+
+                // the content of the directory is complete, so its modification time is not changed anymore
+                copyAttributes(source, target);
+            } catch (IOException e) {
+                throw new CopyException(e);
+            }
+        }
+    }
+
+    private class CopyFilesTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private Path              sourceDir;
+        private Path              targetDir;
+        private List<String>      fileNames;
+
+        private CopyFilesTask(Path sourceDir, Path targetDir, List<String> fileNames) {
+            this.sourceDir = sourceDir;
+            this.targetDir = targetDir;
+            this.fileNames = fileNames;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                for (String fileName : fileNames) {
+                    copyFile(sourceDir.resolve(fileName), targetDir.resolve(fileName));
+                }
+            } catch (IOException e) {
+                throw new CopyException(e);
+            }
+        }
+    }
+
+    private static class CopyException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private CopyException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -26,10 +26,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.List;
 import java.util.Set;
@@ -48,6 +50,10 @@ public class FileUtils {
 	
 	private static final boolean IS_POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
 
+	/**
+	 * @deprecated reads the whole file into memory, read it as a stream, e.g. with a {@link java.io.BufferedReader}.
+	 */
+	@Deprecated
 	public static List<String> getFileAsLines(URL fileURL, String encoding) {
 		InputStream is = null;
 		try {
@@ -76,6 +82,20 @@ public class FileUtils {
 		}
 	}
 
+	/**
+	 * @return the modification time of the file or entry the url points to, 0 if it is not known.
+	 */
+	public static long getLastModified(URL fileURL) {
+		if ("file".equals(fileURL.getProtocol())) {
+			return org.apache.commons.io.FileUtils.toFile(fileURL).lastModified();
+		}
+		try {
+			return fileURL.openConnection().getLastModified();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public static File createEmptyFileWithSamePermissions(File forFile) {
 		return createEmptyFileWithSamePermissions(forFile, forFile.getName());
 	}
@@ -91,6 +111,49 @@ public class FileUtils {
 		}
 	}
 
+	/**
+	 * Creates an empty file with the same permissions in the folder of the given file. The file is on the same file system, so it can replace
+	 * the given file with {@link #replaceFile(File, File)} by renaming it.
+	 */
+	public static File createSiblingFileWithSamePermissions(File forFile) {
+		return createSiblingFileWithSamePermissions(forFile, "." + forFile.getName() + ".");
+	}
+
+	/**
+	 * Like {@link #createSiblingFileWithSamePermissions(File)}, for files which are not written back to the given file, e.g. entries which
+	 * are extracted from the archive. A prefix which starts with a dot keeps the file hidden.
+	 */
+	public static File createSiblingFileWithSamePermissions(File forFile, String filePrefix) {
+		try {
+			File tmp = File.createTempFile(filePrefix, ".tmp", forFile.getAbsoluteFile().getParentFile());
+			setPosixPermissions(getPosixPermissions(forFile), tmp);
+			return tmp;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Replaces the file with the new one. If the file system supports it, it is an atomic rename, so no one sees a missing or half written
+	 * file.
+	 */
+	public static void replaceFile(File newFile, File fileToReplace) {
+		replaceFile(newFile.toPath(), fileToReplace.toPath());
+	}
+
+	static void replaceFile(Path newFile, Path fileToReplace) {
+		try {
+			try {
+				Files.move(newFile, fileToReplace, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				logger.debug("Atomic move not supported, replacing [" + fileToReplace + "] with a plain move.");
+				Files.move(newFile, fileToReplace, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Couldn't rename file from [" + newFile + "] to [" + fileToReplace + "]... Aborting!", e);
+		}
+	}
+
 	public static void setPosixPermissions(Set<PosixFilePermission> permissions, File forFile) {
 		if (!IS_POSIX) {
 			return;
@@ -134,30 +197,27 @@ public class FileUtils {
 	 * @return
 	 */
 	public static Boolean matches(Path relativePath, String regEx) {
+		return matches(relativePath, Pattern.compile(regEx));
+	}
+
+	/**
+	 * Use this one if you match many paths, so the regular expression is compiled only once.
+	 */
+	public static Boolean matches(Path relativePath, Pattern regEx) {
 		// we need to convert it, otherwise we have to mess around with
 		// backslash quoting and regex
 		String unixFileformat = FilenameUtils.separatorsToUnix(relativePath.toString());
-		return Pattern.matches(regEx, unixFileformat);
+		return regEx.matcher(unixFileformat).matches();
 	}
 
 	public static void copyDirectory(File sourceDir, File targetDir) throws IOException {
-		if (sourceDir.isDirectory()) {
-			copyDirectoryRecursively(sourceDir.getAbsoluteFile(), targetDir.getAbsoluteFile());
-		} else {
-			Files.copy(sourceDir.getAbsoluteFile().toPath(), targetDir.getAbsoluteFile().toPath(), java.nio.file.StandardCopyOption.COPY_ATTRIBUTES);
-		}
+		new DirectoryCopier().copy(sourceDir, targetDir);
 	}
 
-	private static void copyDirectoryRecursively(File source, File target) throws IOException {
-		if (!target.exists()) {
-			Files.copy(source.toPath(), target.toPath(), java.nio.file.StandardCopyOption.COPY_ATTRIBUTES);
-		}
-
-		for (String child : source.list()) {
-			copyDirectory(new File(source, child), new File(target, child));
-		}
-	}
-	
+	/**
+	 * @deprecated deleting and then moving a file leaves a moment in which the file doesn't exist, use {@link #replaceFile(File, File)}.
+	 */
+	@Deprecated
 	public static void deleteFile(File fileToDelete) {
 		if (!fileToDelete.delete()) {
             throw new RuntimeException("Couldn't delete file [" + fileToDelete.getPath() + "]... Aborting!");
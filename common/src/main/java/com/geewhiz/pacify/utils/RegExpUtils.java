@@ -20,14 +20,28 @@
 
 package com.geewhiz.pacify.utils;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 public class RegExpUtils {
 
+    // a compiled pattern is thread safe, so we share them. There are only a few different begin and end tokens per run.
+    private static final ConcurrentMap<List<String>, Pattern> DEFAULT_PATTERNS = new ConcurrentHashMap<List<String>, Pattern>();
+
     public static Pattern getDefaultPattern(String beginToken, String endToken) {
-        String regExp = "([^" + Pattern.quote(endToken) + "]*?)";
+        List<String> key = Arrays.asList(beginToken, endToken);
+
+        Pattern pattern = DEFAULT_PATTERNS.get(key);
+        if (pattern == null) {
+            String regExp = "([^" + Pattern.quote(endToken) + "]*?)";
 
-        return getPatternFor(beginToken, endToken, regExp);
+            pattern = getPatternFor(beginToken, endToken, regExp);
+            DEFAULT_PATTERNS.putIfAbsent(key, pattern);
+        }
+        return pattern;
     }
     
     
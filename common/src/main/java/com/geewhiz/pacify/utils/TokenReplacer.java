@@ -0,0 +1,368 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.common
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replaces all tokens of a stream in one pass. The token names are held in a trie, so a placeholder is matched without building a regular
+ * expression for each property.
+ *
+ * The replacement behaves like the ant FilterSet (a placeholder can't span lines, values are replaced recursively). While writing, the output is
+ * scanned for placeholders which are left over, so no second read of the file is needed to find them.
+ */
+public class TokenReplacer {
+
+    private static final int    BUFFER_SIZE = 8192;
+
+    /**
+     * A left over placeholder with a longer name is not reported, so a stray beginToken in a large file doesn't pull the rest of the file into
+     * memory.
+     */
+    public static final int     MAX_PLACEHOLDER_LENGTH = 1024;
+
+    private static final int    NO_MATCH    = -1;
+    private static final int    NEED_MORE   = -2;
+
+    private String              beginToken;
+    private String              endToken;
+    private Map<String, String> tokenValues;
+
+    private Node                root        = new Node();
+    private Map<String, String> resolvedValues = new HashMap<String, String>();
+
+    public TokenReplacer(String beginToken, String endToken, Map<String, String> tokenValues) {
+        if (beginToken == null || beginToken.isEmpty() || endToken == null || endToken.isEmpty()) {
+            throw new IllegalArgumentException("beginToken and endToken must not be empty.");
+        }
+
+        this.beginToken = beginToken;
+        this.endToken = endToken;
+        this.tokenValues = tokenValues;
+
+        for (String token : tokenValues.keySet()) {
+            // the file is filtered line by line, so such a token would never match
+            if (token.isEmpty() || token.indexOf('\n') > -1 || token.indexOf('\r') > -1) {
+                continue;
+            }
+            root.add(token);
+        }
+    }
+
+    /**
+     * Returns all placeholders of the stream in the order they occur, the stream is not modified.
+     */
+    public static List<String> findPlaceholders(Reader reader, String beginToken, String endToken) throws IOException {
+        TokenReplacer tokenReplacer = new TokenReplacer(beginToken, endToken, Collections.<String, String> emptyMap());
+        return tokenReplacer.replace(reader, null).getNotReplacedTokens();
+    }
+
+    /**
+     * @param writer
+     *            could be null, then the stream is only scanned.
+     */
+    public Result replace(Reader reader, Writer writer) throws IOException {
+        Result result = new Result();
+        PlaceholderDetector placeholderDetector = new PlaceholderDetector(writer, result);
+
+        StringBuilder pending = new StringBuilder();
+        StringBuilder out = new StringBuilder();
+        char[] buffer = new char[BUFFER_SIZE];
+
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            pending.append(buffer, 0, read);
+            replaceTokens(pending, false, out, new ArrayList<String>(), result);
+            placeholderDetector.append(out);
+            out.setLength(0);
+        }
+        replaceTokens(pending, true, out, new ArrayList<String>(), result);
+        placeholderDetector.append(out);
+        placeholderDetector.finish();
+
+        return result;
+    }
+
+    public String replace(String line) {
+        StringBuilder out = new StringBuilder();
+        replaceTokens(new StringBuilder(line), true, out, new ArrayList<String>(), null);
+        return out.toString();
+    }
+
+    /**
+     * Replaces the tokens of pending and appends the result to out. Everything which could be the start of a token which is not complete yet is
+     * kept in pending.
+     */
+    private void replaceTokens(StringBuilder pending, boolean eof, StringBuilder out, List<String> passedTokens, Result result) {
+        int i = 0;
+        boolean needMore = false;
+
+        int index = pending.indexOf(beginToken);
+        while (index > -1) {
+            int tokenLength = matchToken(pending, index + beginToken.length(), eof);
+            if (tokenLength == NEED_MORE) {
+                needMore = true;
+                break;
+            }
+
+            out.append(pending, i, index);
+            if (tokenLength == NO_MATCH) {
+                // we can't skip the complete token as it may contain a beginToken
+                out.append(beginToken.charAt(0));
+                i = index + 1;
+            } else {
+                String token = pending.substring(index + beginToken.length(), index + beginToken.length() + tokenLength);
+                out.append(getValue(token, passedTokens));
+                if (result != null) {
+                    result.tokenReplaced(token);
+                }
+                i = index + beginToken.length() + tokenLength + endToken.length();
+            }
+            index = pending.indexOf(beginToken, i);
+        }
+
+        int keepFrom;
+        if (needMore) {
+            keepFrom = index;
+        } else if (eof) {
+            keepFrom = pending.length();
+        } else {
+            // the end could be the start of a beginToken
+            keepFrom = Math.max(i, pending.length() - beginToken.length() + 1);
+        }
+
+        out.append(pending, i, keepFrom);
+        pending.delete(0, keepFrom);
+    }
+
+    /**
+     * @return the length of the token which starts at start, NO_MATCH if there is no such token or NEED_MORE if we have to read further to know.
+     */
+    private int matchToken(CharSequence pending, int start, boolean eof) {
+        Node node = root;
+        int pos = start;
+
+        while (true) {
+            // a token can't be empty
+            if (pos > start) {
+                int endTokenMatch = matchesAt(pending, pos, endToken, eof);
+                if (endTokenMatch == NEED_MORE) {
+                    return NEED_MORE;
+                }
+                if (endTokenMatch > 0) {
+                    return node.token != null ? pos - start : NO_MATCH;
+                }
+            }
+
+            if (pos >= pending.length()) {
+                return eof ? NO_MATCH : NEED_MORE;
+            }
+
+            node = node.children.get(pending.charAt(pos));
+            if (node == null) {
+                return NO_MATCH;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * @return 1 if search is found at pos, 0 if not or NEED_MORE if we have to read further to know.
+     */
+    private static int matchesAt(CharSequence pending, int pos, String search, boolean eof) {
+        for (int i = 0; i < search.length(); i++) {
+            if (pos + i >= pending.length()) {
+                return eof ? 0 : NEED_MORE;
+            }
+            if (pending.charAt(pos + i) != search.charAt(i)) {
+                return 0;
+            }
+        }
+        return 1;
+    }
+
+    private String getValue(String token, List<String> passedTokens) {
+        String value = tokenValues.get(token);
+        if (value.equals(token)) {
+            return value;
+        }
+
+        boolean topLevel = passedTokens.isEmpty();
+        if (topLevel && resolvedValues.containsKey(token)) {
+            return resolvedValues.get(token);
+        }
+
+        if (passedTokens.contains(token)) {
+            // same as the ant FilterSet, which fails on a loop
+            throw new IllegalStateException("Infinite loop in tokens. Currently known tokens : " + tokenValues.keySet() + "\nProblem token : "
+                    + beginToken + token + endToken + " called from " + beginToken + passedTokens.get(passedTokens.size() - 1) + endToken);
+        }
+
+        passedTokens.add(token);
+        StringBuilder out = new StringBuilder();
+        replaceTokens(new StringBuilder(value), true, out, passedTokens, null);
+        passedTokens.remove(passedTokens.size() - 1);
+
+        String result = out.toString();
+        if (topLevel) {
+            resolvedValues.put(token, result);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the placeholders in the written output. A placeholder is the beginToken followed by characters which are not part of the endToken
+     * and the endToken, which is the same as the pattern of {@link RegExpUtils#getDefaultPattern(String, String)}.
+     */
+    private class PlaceholderDetector {
+
+        private Writer        writer;
+        private Result        result;
+        private StringBuilder pending = new StringBuilder();
+
+        public PlaceholderDetector(Writer writer, Result result) {
+            this.writer = writer;
+            this.result = result;
+        }
+
+        public void append(CharSequence chunk) throws IOException {
+            if (chunk.length() == 0) {
+                return;
+            }
+            if (writer != null) {
+                writer.append(chunk);
+            }
+            pending.append(chunk);
+            scan(false);
+        }
+
+        public void finish() {
+            scan(true);
+        }
+
+        private void scan(boolean eof) {
+            int i = 0;
+            boolean needMore = false;
+
+            int index = pending.indexOf(beginToken);
+            while (index > -1) {
+                int start = index + beginToken.length();
+                int pos = start;
+                while (pos < pending.length() && pos - start <= MAX_PLACEHOLDER_LENGTH && endToken.indexOf(pending.charAt(pos)) == -1) {
+                    pos++;
+                }
+
+                int endTokenMatch;
+                if (pos - start > MAX_PLACEHOLDER_LENGTH) {
+                    // too long for a placeholder, the text was written already, so we just forget it
+                    endTokenMatch = 0;
+                } else if (pos < pending.length()) {
+                    endTokenMatch = matchesAt(pending, pos, endToken, eof);
+                } else {
+                    endTokenMatch = eof ? 0 : NEED_MORE;
+                }
+                if (endTokenMatch == NEED_MORE) {
+                    needMore = true;
+                    break;
+                }
+
+                if (endTokenMatch > 0) {
+                    result.notReplacedTokens.add(pending.substring(start, pos));
+                    i = pos + endToken.length();
+                } else {
+                    i = index + 1;
+                }
+                index = pending.indexOf(beginToken, i);
+            }
+
+            int keepFrom;
+            if (needMore) {
+                keepFrom = index;
+            } else if (eof) {
+                keepFrom = pending.length();
+            } else {
+                keepFrom = Math.max(i, pending.length() - beginToken.length() + 1);
+            }
+            pending.delete(0, keepFrom);
+        }
+    }
+
+    private static class Node {
+
+        private Map<Character, Node> children = new HashMap<Character, Node>();
+        private String               token;
+
+        private void add(String token) {
+            Node node = this;
+            for (int i = 0; i < token.length(); i++) {
+                Character c = token.charAt(i);
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.token = token;
+        }
+    }
+
+    public static class Result {
+
+        private Map<String, Integer> replacedTokens    = new TreeMap<String, Integer>();
+        private List<String>         notReplacedTokens = new ArrayList<String>();
+
+        private void tokenReplaced(String token) {
+            Integer count = replacedTokens.get(token);
+            replacedTokens.put(token, count == null ? 1 : count + 1);
+        }
+
+        /**
+         * @return how often each token was replaced.
+         */
+        public Map<String, Integer> getReplacedTokens() {
+            return replacedTokens;
+        }
+
+        public int getReplacedCount() {
+            int count = 0;
+            for (Integer tokenCount : replacedTokens.values()) {
+                count += tokenCount;
+            }
+            return count;
+        }
+
+        /**
+         * @return the placeholders which are still in the output in the order they occur.
+         */
+        public List<String> getNotReplacedTokens() {
+            return notReplacedTokens;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.common
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.geewhiz.pacify.model.PArchive;
+import com.geewhiz.pacify.model.PFile;
+
+public class TestArchiveUtils {
+
+    private File folder;
+
+    @Before
+    public void before() throws IOException {
+        folder = Files.createTempDirectory("archiveUtils").toFile();
+    }
+
+    @After
+    public void after() {
+        org.apache.commons.io.FileUtils.deleteQuietly(folder);
+    }
+
+    @Test
+    public void testDuplicateChildArchivesAreResolvedFromTheSameEntry() throws IOException, ArchiveException {
+        Map<String, byte[]> child = new LinkedHashMap<String, byte[]>();
+        child.put("a.txt", bytes("a %{foo}"));
+        child.put("b.txt", bytes("b %{foo}"));
+
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("child.jar", createArchive(ArchiveStreamFactory.JAR, child));
+        File archive = writeArchive("archive.jar", entries);
+
+        PArchive pArchive = createPArchive(archive);
+        PFile a = createPFile(createChildArchive(pArchive, "child.jar"), "a.txt");
+        PFile b = createPFile(createChildArchive(pArchive, "child.jar"), "b.txt");
+
+        ArchiveUtils.extractPFiles(pArchive);
+
+        Assert.assertEquals("a %{foo}", read(a));
+        Assert.assertEquals("b %{foo}", read(b));
+
+        a.setContent(bytes("a fooValue"));
+        b.setContent(bytes("b fooValue"));
+        ArchiveUtils.replaceFilesInArchives(Arrays.asList(a, b));
+
+        Map<String, byte[]> result = readArchive(ArchiveStreamFactory.JAR, readArchive(archive).get("child.jar"));
+        Assert.assertEquals("a fooValue", string(result.get("a.txt")));
+        Assert.assertEquals("b fooValue", string(result.get("b.txt")));
+    }
+
+    @Test
+    public void testUnchangedEntriesAreCopiedRaw() throws IOException, ArchiveException {
+        File archive = new File(folder, "archive.zip");
+        ZipArchiveOutputStream zos = new ZipArchiveOutputStream(archive);
+        try {
+            addEntry(zos, "deflated.txt", ZipEntry.DEFLATED, bytes(repeat("deflated content ", 1000)));
+            addEntry(zos, "conf.txt", ZipEntry.DEFLATED, bytes("%{foo}"));
+            addEntry(zos, "stored.txt", ZipEntry.STORED, bytes(repeat("stored content ", 1000)));
+        } finally {
+            zos.close();
+        }
+
+        Map<String, ZipArchiveEntry> before = readZipEntries(archive);
+        Map<String, byte[]> rawBefore = readRawEntries(archive);
+
+        PFile pFile = createPFile(createPArchive(archive), "conf.txt");
+        ArchiveUtils.extractPFiles(pFile.getPArchive());
+        pFile.setContent(bytes("fooValue"));
+        ArchiveUtils.replaceFilesInArchives(Arrays.asList(pFile));
+
+        Map<String, ZipArchiveEntry> after = readZipEntries(archive);
+        Map<String, byte[]> rawAfter = readRawEntries(archive);
+
+        Assert.assertEquals("The order of the entries is kept.", new ArrayList<String>(before.keySet()), new ArrayList<String>(after.keySet()));
+        for (String name : Arrays.asList("deflated.txt", "stored.txt")) {
+            Assert.assertEquals(name, before.get(name).getMethod(), after.get(name).getMethod());
+            Assert.assertEquals(name, before.get(name).getCrc(), after.get(name).getCrc());
+            Assert.assertEquals(name, before.get(name).getCompressedSize(), after.get(name).getCompressedSize());
+            Assert.assertArrayEquals(name, rawBefore.get(name), rawAfter.get(name));
+        }
+        Assert.assertEquals("fooValue", string(readArchive(archive).get("conf.txt")));
+    }
+
+    @Test
+    public void testContentFileIsCreatedNextToTheArchive() throws IOException, ArchiveException {
+        Map<String, byte[]> child = new LinkedHashMap<String, byte[]>();
+        child.put("conf.txt", bytes("%{foo}"));
+
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("child.jar", createArchive(ArchiveStreamFactory.JAR, child));
+        File archive = writeArchive("archive.jar", entries);
+
+        PFile pFile = createPFile(createChildArchive(createPArchive(archive), "child.jar"), "conf.txt");
+        ArchiveUtils.extractPFiles(pFile.getPArchive().getParentArchive());
+        Assert.assertTrue(pFile.isInMemory());
+
+        File file = pFile.getFile();
+        Assert.assertEquals(archive.getParentFile().getAbsoluteFile(), file.getParentFile().getAbsoluteFile());
+        Assert.assertEquals("%{foo}", org.apache.commons.io.FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+
+        org.apache.commons.io.FileUtils.writeStringToFile(file, "fooValue", StandardCharsets.UTF_8);
+        ArchiveUtils.replaceFilesInArchives(Arrays.asList(pFile));
+
+        Assert.assertFalse("The temporary file is deleted.", file.exists());
+        Assert.assertEquals(Arrays.asList("archive.jar"), Arrays.asList(folder.list()));
+        Assert.assertEquals("fooValue", string(readArchive(ArchiveStreamFactory.JAR, readArchive(archive).get("child.jar")).get("conf.txt")));
+    }
+
+    @Test
+    public void testNestedJarInWarInEar() throws IOException, ArchiveException {
+        Map<String, byte[]> jar = new LinkedHashMap<String, byte[]>();
+        jar.put("com/geewhiz/Foo.class", bytes("class"));
+        jar.put("conf.properties", bytes("jar=%{foo}"));
+
+        Map<String, byte[]> war = new LinkedHashMap<String, byte[]>();
+        war.put("WEB-INF/web.xml", bytes("<web>%{foo}</web>"));
+        war.put("WEB-INF/lib/lib.jar", createArchive(ArchiveStreamFactory.JAR, jar));
+        war.put("index.html", bytes("index"));
+
+        Map<String, byte[]> ear = new LinkedHashMap<String, byte[]>();
+        ear.put("META-INF/application.xml", bytes("<application/>"));
+        ear.put("app.war", createArchive(ArchiveStreamFactory.JAR, war));
+        ear.put("conf.properties", bytes("ear=%{foo}"));
+        File archive = writeArchive("archive.ear", ear);
+
+        PArchive pEar = createPArchive(archive);
+        PArchive pWar = createChildArchive(pEar, "app.war");
+        PArchive pJar = createChildArchive(pWar, "WEB-INF/lib/lib.jar");
+        PFile earFile = createPFile(pEar, "conf.properties");
+        PFile warFile = createPFile(pWar, "WEB-INF/web.xml");
+        PFile jarFile = createPFile(pJar, "conf.properties");
+
+        ArchiveUtils.extractPFiles(pEar);
+        Assert.assertEquals("ear=%{foo}", read(earFile));
+        Assert.assertEquals("<web>%{foo}</web>", read(warFile));
+        Assert.assertEquals("jar=%{foo}", read(jarFile));
+
+        earFile.setContent(bytes("ear=fooValue"));
+        warFile.setContent(bytes("<web>fooValue</web>"));
+        jarFile.setContent(bytes("jar=fooValue"));
+        ArchiveUtils.replaceFilesInArchives(Arrays.asList(earFile, warFile, jarFile));
+
+        Map<String, byte[]> resultEar = readArchive(archive);
+        Map<String, byte[]> resultWar = readArchive(ArchiveStreamFactory.JAR, resultEar.get("app.war"));
+        Map<String, byte[]> resultJar = readArchive(ArchiveStreamFactory.JAR, resultWar.get("WEB-INF/lib/lib.jar"));
+
+        Assert.assertEquals(new ArrayList<String>(ear.keySet()), new ArrayList<String>(resultEar.keySet()));
+        Assert.assertEquals(new ArrayList<String>(war.keySet()), new ArrayList<String>(resultWar.keySet()));
+        Assert.assertEquals(new ArrayList<String>(jar.keySet()), new ArrayList<String>(resultJar.keySet()));
+
+        Assert.assertEquals("ear=fooValue", string(resultEar.get("conf.properties")));
+        Assert.assertEquals("<web>fooValue</web>", string(resultWar.get("WEB-INF/web.xml")));
+        Assert.assertEquals("jar=fooValue", string(resultJar.get("conf.properties")));
+        Assert.assertEquals("<application/>", string(resultEar.get("META-INF/application.xml")));
+        Assert.assertEquals("index", string(resultWar.get("index.html")));
+        Assert.assertEquals("class", string(resultJar.get("com/geewhiz/Foo.class")));
+    }
+
+    @Test
+    public void testChildArchivesInTar() throws IOException, ArchiveException {
+        Map<String, byte[]> jar = new LinkedHashMap<String, byte[]>();
+        jar.put("conf.properties", bytes("jar=%{foo}"));
+
+        Map<String, byte[]> tar = new LinkedHashMap<String, byte[]>();
+        tar.put("lib/lib.jar", createArchive(ArchiveStreamFactory.JAR, jar));
+        tar.put("conf.properties", bytes("tar=%{foo}"));
+        tar.put("readme.txt", bytes("readme"));
+        File archive = writeArchive("archive.tar", tar);
+
+        PArchive pTar = createPArchive(archive);
+        PFile tarFile = createPFile(pTar, "conf.properties");
+        PFile jarFile = createPFile(createChildArchive(pTar, "lib/lib.jar"), "conf.properties");
+
+        ArchiveUtils.extractPFiles(pTar);
+        tarFile.setContent(bytes("tar=fooValue"));
+        jarFile.setContent(bytes("jar=fooValue"));
+        ArchiveUtils.replaceFilesInArchives(Arrays.asList(tarFile, jarFile));
+
+        Map<String, byte[]> result = readArchive(archive);
+        Assert.assertEquals(new ArrayList<String>(tar.keySet()), new ArrayList<String>(result.keySet()));
+        Assert.assertEquals("tar=fooValue", string(result.get("conf.properties")));
+        Assert.assertEquals("readme", string(result.get("readme.txt")));
+        Assert.assertEquals("jar=fooValue", string(readArchive(ArchiveStreamFactory.JAR, result.get("lib/lib.jar")).get("conf.properties")));
+    }
+
+    @Test
+    public void testChildArchivesAboveAndBelowTheInMemoryThreshold() throws IOException, ArchiveException {
+        // a stored entry, so the child archive is larger than the threshold
+        byte[] large = new byte[ArchiveUtils.NESTED_ARCHIVE_IN_MEMORY_THRESHOLD + 1];
+        File largeJar = new File(folder, "large.jar");
+        ZipArchiveOutputStream zos = new ZipArchiveOutputStream(largeJar);
+        try {
+            addEntry(zos, "large.bin", ZipEntry.STORED, large);
+            addEntry(zos, "conf.properties", ZipEntry.DEFLATED, bytes("large=%{foo}"));
+        } finally {
+            zos.close();
+        }
+        byte[] largeChild = org.apache.commons.io.FileUtils.readFileToByteArray(largeJar);
+        largeJar.delete();
+
+        Map<String, byte[]> small = new LinkedHashMap<String, byte[]>();
+        small.put("conf.properties", bytes("small=%{foo}"));
+        byte[] smallChild = createArchive(ArchiveStreamFactory.JAR, small);
+
+        // a zip writes the large child archive as a stream, a tar needs its size in advance
+        for (String name : Arrays.asList("archive.jar", "archive.tar")) {
+            Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+            entries.put("large.jar", largeChild);
+            entries.put("small.jar", smallChild);
+            File archive = writeArchive(name, entries);
+
+            PArchive pArchive = createPArchive(archive);
+            PFile largeFile = createPFile(createChildArchive(pArchive, "large.jar"), "conf.properties");
+            PFile smallFile = createPFile(createChildArchive(pArchive, "small.jar"), "conf.properties");
+
+            ArchiveUtils.extractPFiles(pArchive);
+            Assert.assertEquals(name, "large=%{foo}", read(largeFile));
+            Assert.assertEquals(name, "small=%{foo}", read(smallFile));
+
+            largeFile.setContent(bytes("large=fooValue"));
+            smallFile.setContent(bytes("small=fooValue"));
+            ArchiveUtils.replaceFilesInArchives(Arrays.asList(largeFile, smallFile));
+
+            Map<String, byte[]> result = readArchive(archive);
+            Map<String, byte[]> resultLarge = readArchive(ArchiveStreamFactory.JAR, result.get("large.jar"));
+            Assert.assertEquals(name, "large=fooValue", string(resultLarge.get("conf.properties")));
+            Assert.assertArrayEquals(name, large, resultLarge.get("large.bin"));
+            Assert.assertEquals(name, "small=fooValue", string(readArchive(ArchiveStreamFactory.JAR, result.get("small.jar")).get("conf.properties")));
+
+            Assert.assertEquals("No temporary file is left.", Arrays.asList(name), Arrays.asList(folder.list()));
+            archive.delete();
+        }
+    }
+
+    @Test
+    public void testLargeEntriesAreExtractedNextToTheRootArchive() throws IOException, ArchiveException {
+        char[] large = new char[ArchiveUtils.IN_MEMORY_THRESHOLD + 1];
+        Arrays.fill(large, 'x');
+        String content = new String(large) + "%{foo}";
+
+        Map<String, byte[]> child = new LinkedHashMap<String, byte[]>();
+        child.put("large.txt", bytes(content));
+
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("child.jar", createArchive(ArchiveStreamFactory.JAR, child));
+        File archive = writeArchive("archive.jar", entries);
+
+        // both pfiles request the same entry, the second one gets a copy
+        PArchive pArchive = createPArchive(archive);
+        PFile first = createPFile(createChildArchive(pArchive, "child.jar"), "large.txt");
+        PFile second = createPFile(createChildArchive(pArchive, "child.jar"), "large.txt");
+
+        ArchiveUtils.extractPFiles(pArchive);
+
+        for (PFile pFile : Arrays.asList(first, second)) {
+            Assert.assertFalse(pFile.isInMemory());
+            Assert.assertEquals(folder.getCanonicalFile(), pFile.getFile().getCanonicalFile().getParentFile());
+            Assert.assertTrue(pFile.getFile().getName().startsWith("."));
+            Assert.assertEquals(content, read(pFile));
+        }
+        Assert.assertNotEquals(first.getFile(), second.getFile());
+
+        ArchiveUtils.replaceFilesInArchives(Arrays.asList(first, second));
+        Assert.assertEquals("No temporary file is left.", Arrays.asList("archive.jar"), Arrays.asList(folder.list()));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testDeprecatedExtraction() throws IOException, ArchiveException {
+        Map<String, byte[]> child = new LinkedHashMap<String, byte[]>();
+        child.put("a.txt", bytes("a %{foo}"));
+
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("child.jar", createArchive(ArchiveStreamFactory.JAR, child));
+        File archive = writeArchive("archive.jar", entries);
+
+        PArchive pChild = createChildArchive(createPArchive(archive), "child.jar");
+        pChild.setType(ArchiveStreamFactory.JAR);
+        pChild.setFile(ArchiveUtils.extractPArchive(pChild));
+        PFile a = createPFile(pChild, "a.txt");
+
+        List<PFile> pFiles = ArchiveUtils.extractPFile(a);
+
+        Assert.assertEquals(Collections.singletonList(a), pFiles);
+        Assert.assertEquals("a %{foo}", read(a));
+    }
+
+    private PArchive createPArchive(File archive) {
+        PArchive pArchive = new PArchive();
+        pArchive.setRelativePath(archive.getName());
+        pArchive.setFile(archive);
+        pArchive.setType(ArchiveUtils.getArchiveType(archive));
+        return pArchive;
+    }
+
+    private PArchive createChildArchive(PArchive parent, String relativePath) {
+        PArchive pArchive = new PArchive();
+        pArchive.setRelativePath(relativePath);
+        pArchive.afterUnmarshal(null, parent);
+        parent.getFilesAndArchives().add(pArchive);
+        return pArchive;
+    }
+
+    private PFile createPFile(PArchive parent, String relativePath) {
+        PFile pFile = new PFile();
+        pFile.setRelativePath(relativePath);
+        pFile.afterUnmarshal(null, parent);
+        parent.getFilesAndArchives().add(pFile);
+        return pFile;
+    }
+
+    private File writeArchive(String name, Map<String, byte[]> entries) throws IOException, ArchiveException {
+        File archive = new File(folder, name);
+        org.apache.commons.io.FileUtils.writeByteArrayToFile(archive, createArchive(ArchiveUtils.getArchiveType(name), entries));
+        return archive;
+    }
+
+    private byte[] createArchive(String archiveType, Map<String, byte[]> entries) throws IOException, ArchiveException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ArchiveOutputStream aos = new ArchiveStreamFactory().createArchiveOutputStream(archiveType, result);
+        for (String name : entries.keySet()) {
+            byte[] content = entries.get(name);
+            ArchiveEntry entry;
+            if (ArchiveStreamFactory.TAR.equals(archiveType)) {
+                TarArchiveEntry tarEntry = new TarArchiveEntry(name);
+                tarEntry.setSize(content.length);
+                entry = tarEntry;
+            } else {
+                entry = new ZipArchiveEntry(name);
+            }
+            aos.putArchiveEntry(entry);
+            aos.write(content);
+            aos.closeArchiveEntry();
+        }
+        aos.close();
+        return result.toByteArray();
+    }
+
+    private void addEntry(ZipArchiveOutputStream zos, String name, int method, byte[] content) throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setMethod(method);
+        zos.putArchiveEntry(entry);
+        zos.write(content);
+        zos.closeArchiveEntry();
+    }
+
+    private Map<String, ZipArchiveEntry> readZipEntries(File archive) throws IOException {
+        Map<String, ZipArchiveEntry> result = new LinkedHashMap<String, ZipArchiveEntry>();
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+                result.put(entry.getName(), entry);
+            }
+        } finally {
+            zipFile.close();
+        }
+        return result;
+    }
+
+    /**
+     * @return the entries as they are stored in the zip, without decompressing them.
+     */
+    private Map<String, byte[]> readRawEntries(File archive) throws IOException {
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+                InputStream is = zipFile.getRawInputStream(entry);
+                try {
+                    result.put(entry.getName(), IOUtils.toByteArray(is));
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+        return result;
+    }
+
+    private Map<String, byte[]> readArchive(File archive) throws IOException, ArchiveException {
+        return readArchive(ArchiveUtils.getArchiveType(archive), org.apache.commons.io.FileUtils.readFileToByteArray(archive));
+    }
+
+    private Map<String, byte[]> readArchive(String archiveType, byte[] archive) throws IOException, ArchiveException {
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        ArchiveInputStream ais = new ArchiveStreamFactory().createArchiveInputStream(archiveType, new ByteArrayInputStream(archive));
+        try {
+            ArchiveEntry entry;
+            while ((entry = ais.getNextEntry()) != null) {
+                result.put(entry.getName(), IOUtils.toByteArray(ais));
+            }
+        } finally {
+            ais.close();
+        }
+        return result;
+    }
+
+    private String read(PFile pFile) throws IOException {
+        InputStream is = pFile.openInputStream();
+        try {
+            return IOUtils.toString(is, StandardCharsets.UTF_8);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(String value, int count) {
+        StringBuilder result = new StringBuilder(value.length() * count);
+        for (int i = 0; i < count; i++) {
+            result.append(value);
+        }
+        return result.toString();
+    }
+
+    private static String string(byte[] content) {
+        return new String(content, StandardCharsets.UTF_8);
+    }
+}
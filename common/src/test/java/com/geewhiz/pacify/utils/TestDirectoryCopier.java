@@ -0,0 +1,206 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.common
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDirectoryCopier {
+
+    private File folder;
+    private File source;
+    private File target;
+
+    @Before
+    public void before() throws IOException {
+        folder = File.createTempFile("directoryCopier", "");
+        folder.delete();
+        folder.mkdir();
+
+        source = new File(folder, "source");
+        target = new File(folder, "target");
+
+        write(new File(source, "conf.txt"), "conf");
+        write(new File(source, "readme.txt"), "readme");
+        write(new File(source, "sub/other.txt"), "other");
+    }
+
+    @After
+    public void after() {
+        org.apache.commons.io.FileUtils.deleteQuietly(folder);
+    }
+
+    @Test
+    public void testOnlyTheFilesToCopyAreCopied() throws IOException {
+        copy(Collections.singleton(new File(source, "conf.txt")));
+
+        Assert.assertFalse(isSameFile("conf.txt"));
+        Assert.assertTrue(isSameFile("readme.txt"));
+        Assert.assertTrue(isSameFile("sub/other.txt"));
+
+        Assert.assertEquals("conf", read(new File(target, "conf.txt")));
+        Assert.assertEquals("readme", read(new File(target, "readme.txt")));
+        Assert.assertEquals("other", read(new File(target, "sub/other.txt")));
+    }
+
+    @Test
+    public void testWithoutFilesToCopyEverythingIsCopied() throws IOException {
+        new DirectoryCopier().copy(source, target);
+
+        Assert.assertFalse(isSameFile("conf.txt"));
+        Assert.assertFalse(isSameFile("readme.txt"));
+        Assert.assertFalse(isSameFile("sub/other.txt"));
+    }
+
+    @Test
+    public void testModifyingTheCopyDoesNotWriteThrough() throws IOException {
+        copy(Collections.singleton(new File(source, "conf.txt")));
+
+        // a file which is written by the run is written in place or replaced
+        write(new File(target, "conf.txt"), "modified");
+        File tmp = FileUtils.createSiblingFileWithSamePermissions(new File(target, "readme.txt"));
+        write(tmp, "modified");
+        FileUtils.replaceFile(tmp, new File(target, "readme.txt"));
+
+        Assert.assertEquals("conf", read(new File(source, "conf.txt")));
+        Assert.assertEquals("readme", read(new File(source, "readme.txt")));
+        Assert.assertEquals("modified", read(new File(target, "conf.txt")));
+        Assert.assertEquals("modified", read(new File(target, "readme.txt")));
+    }
+
+    @Test
+    public void testFileToCopyReachedViaAnotherPathIsCopied() throws IOException {
+        // a hard link within the source and a symbolic link to a folder of the source
+        Files.createLink(new File(source, "twin.txt").toPath(), new File(source, "conf.txt").toPath());
+        Files.createSymbolicLink(new File(source, "linked").toPath(), new File(source, "sub").toPath());
+
+        Set<File> filesToCopy = new HashSet<File>();
+        filesToCopy.add(new File(source, "conf.txt"));
+        filesToCopy.add(new File(source, "linked/other.txt"));
+        copy(filesToCopy);
+
+        Assert.assertFalse(isSameFile("twin.txt"));
+        Assert.assertFalse(isSameFile("sub/other.txt"));
+        Assert.assertFalse(isSameFile("linked/other.txt"));
+        Assert.assertTrue(isSameFile("readme.txt"));
+
+        write(new File(target, "twin.txt"), "modified");
+        write(new File(target, "sub/other.txt"), "modified");
+
+        Assert.assertEquals("conf", read(new File(source, "conf.txt")));
+        Assert.assertEquals("other", read(new File(source, "sub/other.txt")));
+    }
+
+    @Test
+    public void testPermissionsAndModificationTimesAreKept() throws IOException {
+        // the large file is transferred via its channel
+        char[] large = new char[2 * 1024 * 1024];
+        Arrays.fill(large, 'x');
+        write(new File(source, "sub/large.bin"), new String(large));
+
+        long lastModified = System.currentTimeMillis() / 1000 * 1000 - 24 * 60 * 60 * 1000;
+        for (String file : new String[] { "conf.txt", "sub/large.bin" }) {
+            Files.setPosixFilePermissions(new File(source, file).toPath(), PosixFilePermissions.fromString("rwxr-x---"));
+            new File(source, file).setLastModified(lastModified);
+        }
+        new File(source, "sub").setLastModified(lastModified);
+
+        new DirectoryCopier().copy(source, target);
+
+        for (String file : new String[] { "conf.txt", "sub/large.bin", "sub" }) {
+            File sourceFile = new File(source, file);
+            File targetFile = new File(target, file);
+            Assert.assertEquals(file, Files.getPosixFilePermissions(sourceFile.toPath()), Files.getPosixFilePermissions(targetFile.toPath()));
+            Assert.assertEquals(file, sourceFile.lastModified(), targetFile.lastModified());
+        }
+        Assert.assertEquals(new String(large), read(new File(target, "sub/large.bin")));
+    }
+
+    @Test
+    public void testManyFilesWithThreads() throws IOException {
+        for (int i = 0; i < 500; i++) {
+            write(new File(source, "many/file" + i + ".txt"), "content" + i);
+        }
+
+        Set<File> filesToCopy = new HashSet<File>();
+        for (int i = 0; i < 500; i += 2) {
+            filesToCopy.add(new File(source, "many/file" + i + ".txt"));
+        }
+
+        DirectoryCopier directoryCopier = new DirectoryCopier();
+        directoryCopier.setThreadCount(4);
+        directoryCopier.setFilesToCopy(filesToCopy);
+        directoryCopier.copy(source, target);
+
+        for (int i = 0; i < 500; i++) {
+            Assert.assertEquals("content" + i, read(new File(target, "many/file" + i + ".txt")));
+            Assert.assertEquals(i % 2 == 1, isSameFile("many/file" + i + ".txt"));
+        }
+    }
+
+    @Test
+    public void testErrorIsPropagated() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            write(new File(source, "many/file" + i + ".txt"), "content" + i);
+        }
+        // the copy doesn't overwrite existing files
+        write(new File(target, "many/file50.txt"), "existing");
+
+        DirectoryCopier directoryCopier = new DirectoryCopier();
+        directoryCopier.setThreadCount(4);
+        try {
+            directoryCopier.copy(source, target);
+            Assert.fail("The existing file can't be copied.");
+        } catch (FileAlreadyExistsException e) {
+            Assert.assertEquals(new File(target, "many/file50.txt").getAbsolutePath(), e.getFile());
+        }
+    }
+
+    private void copy(Set<File> filesToCopy) throws IOException {
+        DirectoryCopier directoryCopier = new DirectoryCopier();
+        directoryCopier.setFilesToCopy(filesToCopy);
+        directoryCopier.copy(source, target);
+    }
+
+    private boolean isSameFile(String relativePath) throws IOException {
+        return Files.isSameFile(new File(source, relativePath).toPath(), new File(target, relativePath).toPath());
+    }
+
+    private void write(File file, String content) throws IOException {
+        org.apache.commons.io.FileUtils.writeStringToFile(file, content, "UTF-8");
+    }
+
+    private String read(File file) throws IOException {
+        return org.apache.commons.io.FileUtils.readFileToString(file, "UTF-8");
+    }
+}
@@ -0,0 +1,128 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.common
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFileUtils {
+
+    private File folder;
+
+    @Before
+    public void before() throws IOException {
+        folder = File.createTempFile("fileUtils", "");
+        folder.delete();
+        folder.mkdir();
+    }
+
+    @After
+    public void after() {
+        org.apache.commons.io.FileUtils.deleteQuietly(folder);
+    }
+
+    @Test
+    public void testReplaceFile() throws IOException {
+        File fileToReplace = new File(folder, "conf.txt");
+        write(fileToReplace, "old");
+        File newFile = FileUtils.createSiblingFileWithSamePermissions(fileToReplace);
+        write(newFile, "new");
+
+        FileUtils.replaceFile(newFile, fileToReplace);
+
+        Assert.assertEquals("new", read(fileToReplace));
+        Assert.assertFalse(newFile.exists());
+    }
+
+    @Test
+    public void testReplaceFileWithoutAtomicMove() throws IOException {
+        File fileToReplace = new File(folder, "conf.txt");
+        write(fileToReplace, "old");
+
+        // an atomic move between two file system providers is not supported
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("create", "true");
+        FileSystem zipFileSystem = FileSystems.newFileSystem(URI.create("jar:" + new File(folder, "other.zip").toURI()), env);
+        try {
+            Path newFile = zipFileSystem.getPath("new.txt");
+            Files.write(newFile, "new".getBytes("UTF-8"));
+
+            FileUtils.replaceFile(newFile, fileToReplace.toPath());
+
+            Assert.assertEquals("new", read(fileToReplace));
+            Assert.assertFalse(Files.exists(newFile));
+        } finally {
+            zipFileSystem.close();
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testReplaceFileWithoutNewFile() {
+        FileUtils.replaceFile(new File(folder, "missing.txt"), new File(folder, "conf.txt"));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testDeleteFile() throws IOException {
+        File file = new File(folder, "conf.txt");
+        write(file, "content");
+
+        FileUtils.deleteFile(file);
+        Assert.assertFalse(file.exists());
+
+        try {
+            FileUtils.deleteFile(file);
+            Assert.fail("The file doesn't exist anymore.");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Couldn't delete file"));
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testGetFileAsLines() throws IOException {
+        File file = new File(folder, "conf.txt");
+        write(file, "first\nsecond\n");
+
+        Assert.assertEquals(Arrays.asList("first", "second"), FileUtils.getFileAsLines(FileUtils.getFileUrl(file), "UTF-8"));
+    }
+
+    private void write(File file, String content) throws IOException {
+        org.apache.commons.io.FileUtils.writeStringToFile(file, content, "UTF-8");
+    }
+
+    private String read(File file) throws IOException {
+        return org.apache.commons.io.FileUtils.readFileToString(file, "UTF-8");
+    }
+}
@@ -0,0 +1,218 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.common
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenReplacerTest {
+
+    @Test
+    public void testSimpleReplacement() throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("foo", "fooValue");
+        values.put("foobar", "foobarValue");
+
+        TokenReplacer.Result result = replace("%{", "}", values, "a %{foo} b %{foobar} c %{foo}", "a fooValue b foobarValue c fooValue");
+
+        Assert.assertEquals(3, result.getReplacedCount());
+        Assert.assertEquals(Integer.valueOf(2), result.getReplacedTokens().get("foo"));
+        Assert.assertEquals(0, result.getNotReplacedTokens().size());
+    }
+
+    @Test
+    public void testBeginTokenEqualsEndToken() throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("foo", "fooValue");
+
+        TokenReplacer.Result result = replace("@", "@", values, "@foo@bar@foo@ @@ @unknown@", "fooValuebarfooValue @@ @unknown@");
+
+        Assert.assertEquals(2, result.getReplacedCount());
+        // same as RegExpUtils.getDefaultPattern, "@@" is an empty placeholder
+        Assert.assertEquals(Arrays.asList("", "unknown"), result.getNotReplacedTokens());
+    }
+
+    @Test
+    public void testBeginTokenOverlapsItself() throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("foo", "fooValue");
+
+        replace("%{", "}", values, "%%{foo} %{%{foo}} {%{foo}}", "%fooValue %{fooValue} {fooValue}");
+        replace("##", "##", values, "###foo## ####foo####", "#fooValue ##fooValue##");
+    }
+
+    @Test
+    public void testTokenSplitAcrossReadBuffer() throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("foo", "fooValue");
+
+        String padding = repeat('x', 8190);
+        String input = padding + "%{foo}" + padding + "%{" + "foo}" + padding + "%{bar}";
+        String expected = padding + "fooValue" + padding + "fooValue" + padding + "%{bar}";
+
+        // one char after the other and the default buffer, so every position of the token is at a boundary once
+        for (int chunkSize : new int[] { 1, 2, 3, 7, 8192 }) {
+            StringWriter writer = new StringWriter();
+            TokenReplacer.Result result = new TokenReplacer("%{", "}", values).replace(new ChunkedReader(input, chunkSize), writer);
+
+            Assert.assertEquals("chunk size " + chunkSize, expected, writer.toString());
+            Assert.assertEquals("chunk size " + chunkSize, Arrays.asList("bar"), result.getNotReplacedTokens());
+        }
+    }
+
+    @Test
+    public void testNestedAndRecursiveValues() throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("outer", "<%{middle}>");
+        values.put("middle", "[%{inner}|%{inner}]");
+        values.put("inner", "innerValue");
+        values.put("self", "self");
+
+        replace("%{", "}", values, "%{outer} %{middle} %{self}", "<[innerValue|innerValue]> [innerValue|innerValue] self");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLoopInValuesFails() throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("a", "%{b}");
+        values.put("b", "%{a}");
+
+        replace("%{", "}", values, "%{a}", null);
+    }
+
+    @Test
+    public void testUnterminatedPlaceholderAtEof() throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("foo", "fooValue");
+
+        TokenReplacer.Result result = replace("%{", "}", values, "%{foo} %{foo", "fooValue %{foo");
+        Assert.assertEquals(0, result.getNotReplacedTokens().size());
+
+        result = replace("%{", "}", values, "%{bar", "%{bar");
+        Assert.assertEquals(0, result.getNotReplacedTokens().size());
+
+        result = replace("%{", "}", values, "%{", "%{");
+        Assert.assertEquals(0, result.getNotReplacedTokens().size());
+    }
+
+    @Test
+    public void testStrayBeginTokenIsNotBuffered() throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("foo", "fooValue");
+
+        String padding = repeat('x', 10 * TokenReplacer.MAX_PLACEHOLDER_LENGTH);
+        TokenReplacer.Result result = replace("%{", "}", values, "%{" + padding + "%{foo} %{bar}", "%{" + padding + "fooValue %{bar}");
+
+        // the placeholder without an end is dropped, the following ones are still found
+        Assert.assertEquals(Arrays.asList("bar"), result.getNotReplacedTokens());
+    }
+
+    @Test
+    public void testMultiByteEncodings() throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("f\u00f6\u00f6", "\u20ac\u00e4\ud834\udd1e");
+
+        String input = "\u00e4\u00f6\u00fc %{f\u00f6\u00f6} \ud834\udd1e %{\u00fcnknown}";
+        String expected = "\u00e4\u00f6\u00fc \u20ac\u00e4\ud834\udd1e \ud834\udd1e %{\u00fcnknown}";
+
+        for (String encoding : new String[] { "UTF-8", "UTF-16", "ISO-8859-15" }) {
+            String encodable = "ISO-8859-15".equals(encoding) ? "\u00e4\u00f6\u00fc %{f\u00f6\u00f6} %{\u00fcnknown}" : input;
+            String result = "ISO-8859-15".equals(encoding) ? "\u00e4\u00f6\u00fc \u20ac\u00e4? %{\u00fcnknown}" : expected;
+
+            Reader reader = new InputStreamReader(new ByteArrayInputStream(encodable.getBytes(encoding)), encoding);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(out, encoding);
+
+            TokenReplacer.Result replaceResult = new TokenReplacer("%{", "}", values).replace(reader, writer);
+            writer.close();
+
+            Assert.assertEquals(encoding, result, new String(out.toByteArray(), encoding));
+            Assert.assertEquals(encoding, Arrays.asList("\u00fcnknown"), replaceResult.getNotReplacedTokens());
+        }
+    }
+
+    @Test
+    public void testFindPlaceholders() throws IOException {
+        Assert.assertEquals(Arrays.asList("foo", "bar", "foo"),
+                TokenReplacer.findPlaceholders(new StringReader("%{foo} %{bar}\n%{foo} %{ba"), "%{", "}"));
+        Assert.assertEquals(Collections.emptyList(), TokenReplacer.findPlaceholders(new StringReader(""), "%{", "}"));
+    }
+
+    private TokenReplacer.Result replace(String beginToken, String endToken, Map<String, String> values, String input, String expected)
+            throws IOException {
+        StringWriter writer = new StringWriter();
+        TokenReplacer.Result result = new TokenReplacer(beginToken, endToken, values).replace(new StringReader(input), writer);
+        if (expected != null) {
+            Assert.assertEquals(expected, writer.toString());
+        }
+        return result;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] result = new char[count];
+        Arrays.fill(result, c);
+        return new String(result);
+    }
+
+    /**
+     * Returns at most chunkSize chars per read, like a slow stream.
+     */
+    private static class ChunkedReader extends Reader {
+
+        private String content;
+        private int    chunkSize;
+        private int    pos = 0;
+
+        private ChunkedReader(String content, int chunkSize) {
+            this.content = content;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (pos >= content.length()) {
+                return -1;
+            }
+            int count = Math.min(Math.min(len, chunkSize), content.length() - pos);
+            content.getChars(pos, pos + count, cbuf, off);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -121,6 +121,9 @@ public class CreatePropertyFile {
     private Set<String> getPropertyLines() {
         Set<String> result = new TreeSet<String>();
 
+        // a property which references a cycle can't be resolved
+        DefectUtils.abortIfDefectExists(new LinkedHashSet<Defect>(propertyResolveManager.checkForCycles()));
+
         LinkedHashSet<Defect> defects = new LinkedHashSet<Defect>();
 
         for (String propertyKey : propertyResolveManager.getPropertyKeys()) {
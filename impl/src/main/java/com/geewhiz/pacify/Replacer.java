@@ -22,8 +22,11 @@ package com.geewhiz.pacify;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -31,11 +34,12 @@ import org.apache.logging.log4j.Logger;
 import com.geewhiz.pacify.defect.Defect;
 import com.geewhiz.pacify.defect.DefectException;
 import com.geewhiz.pacify.defect.DefectMessage;
+import com.geewhiz.pacify.filter.ReplacementManifest;
 import com.geewhiz.pacify.managers.EntityManager;
 import com.geewhiz.pacify.managers.FilterManager;
 import com.geewhiz.pacify.managers.PropertyResolveManager;
 import com.geewhiz.pacify.utils.DefectUtils;
-import com.geewhiz.pacify.utils.FileUtils;
+import com.geewhiz.pacify.utils.DirectoryCopier;
 import com.geewhiz.pacify.utils.Utils;
 import com.google.inject.Inject;
 
@@ -46,8 +50,13 @@ public class Replacer {
 	private PropertyResolveManager propertyResolveManager;
 	private File packagePath;
 	private File copyDestination;
+	private File manifestFile;
+	private boolean linkUnmodifiedFiles = true;
+	private int threadCount = 1;
+	private List<String> excludes = new ArrayList<String>();
 
 	private EntityManager entityManager;
+	private EntityManager packageEntityManager;
 
 	@Inject
 	public Replacer(PropertyResolveManager propertyResolveManager) {
@@ -103,9 +112,64 @@ public class Replacer {
 		this.copyDestination = copyDestination;
 	}
 
+	public boolean isLinkUnmodifiedFiles() {
+		return linkUnmodifiedFiles;
+	}
+
+	/**
+	 * By default the files of the copy destination which are not modified by the run are hard links to the files of the package. Writing
+	 * into such a file of the copy after the run changes the package as well, disable it if the copy is modified later on.
+	 */
+	public void setLinkUnmodifiedFiles(boolean linkUnmodifiedFiles) {
+		this.linkUnmodifiedFiles = linkUnmodifiedFiles;
+	}
+
+	public File getManifestFile() {
+		return manifestFile;
+	}
+
+	/**
+	 * Enables the incremental mode. Files and archives whose template and values didn't change since the last run get the output of the last
+	 * run instead of being filtered again, so an unchanged archive isn't rewritten. A template is only hashed, if its size or modification
+	 * time changed.
+	 */
+	public void setManifestFile(File manifestFile) {
+		this.manifestFile = manifestFile;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("threadCount must be at least 1 but was [" + threadCount + "]");
+		}
+		this.threadCount = threadCount;
+	}
+
+	public List<String> getExcludes() {
+		return excludes;
+	}
+
+	public void setExcludes(List<String> excludes) {
+		this.excludes = excludes;
+	}
+
 	public EntityManager getEntityManager() {
 		if (entityManager == null) {
-			entityManager = createEntityManager(prepareAndGetPathToConfigure());
+			File pathToConfigure = prepareAndGetPathToConfigure();
+			entityManager = createEntityManager(pathToConfigure);
+			entityManager.setThreadCount(getThreadCount());
+			entityManager.setExcludes(getExcludes());
+			if (packageEntityManager != null) {
+				// the marker files of the copy are the same as the ones of the package, so they are not read again
+				entityManager.takeOverPMarkers(packageEntityManager);
+				packageEntityManager = null;
+			}
+			if (getManifestFile() != null) {
+				entityManager.setReplacementManifest(new ReplacementManifest(getManifestFile(), pathToConfigure));
+			}
 		}
 		return entityManager;
 	}
@@ -134,7 +198,7 @@ public class Replacer {
 				getCopyDestination().mkdirs();
 			}
 			
-			FileUtils.copyDirectory(getPackagePath(), getCopyDestination());
+			copyPackage();
 			return getCopyDestination();
 		} catch (IOException e) {
 			logger.debug(e);
@@ -143,13 +207,43 @@ public class Replacer {
 		}
 	}
 
+	/**
+	 * Only the files which are written by the run are copied, all others are hard links to the package, if not disabled. The marker files
+	 * which are read for this are taken over by the entity manager of the copy. If the marker files of the package are not valid, everything
+	 * is copied and the defects are reported for the copy.
+	 */
+	private void copyPackage() throws IOException {
+		DirectoryCopier directoryCopier = new DirectoryCopier();
+		directoryCopier.setThreadCount(getThreadCount());
+
+		if (isLinkUnmodifiedFiles()) {
+			EntityManager packageEntityManager = createEntityManager(getPackagePath());
+			packageEntityManager.setThreadCount(getThreadCount());
+			packageEntityManager.setExcludes(getExcludes());
+
+			if (packageEntityManager.initialize().isEmpty()) {
+				Set<File> modifiedFiles = packageEntityManager.getModifiedFiles();
+				logger.debug("   Copying [{}] files which are modified, linking all others.", modifiedFiles.size());
+				directoryCopier.setFilesToCopy(modifiedFiles);
+				this.packageEntityManager = packageEntityManager;
+			}
+		}
+
+		directoryCopier.copy(getPackagePath(), getCopyDestination());
+	}
+
 	public LinkedHashSet<Defect> doReplacement() {
 		LinkedHashSet<Defect> defects = getEntityManager().initialize();
 
 		FilterManager filterManager = new FilterManager(getEntityManager(), propertyResolveManager);
+		filterManager.setThreadCount(getThreadCount());
 
 		defects.addAll(filterManager.doFilter());
 
+		if (getEntityManager().getReplacementManifest() != null) {
+			getEntityManager().getReplacementManifest().write();
+		}
+
 		return defects;
 	}
 
@@ -24,7 +24,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -47,16 +49,18 @@ public class ShowUsedProperties {
         Stdout, File
     }
 
-    private Logger     logger = LogManager.getLogger(ShowUsedProperties.class.getName());
+    private Logger       logger = LogManager.getLogger(ShowUsedProperties.class.getName());
 
-    private File       packagePath;
-    private File       targetFile;
-    private String     targetEncoding;
-    private OutputType outputType;
-    private String     outputPrefix;
+    private File         packagePath;
+    private List<String> excludes = new ArrayList<String>();
+    private File         targetFile;
+    private String       targetEncoding;
+    private OutputType   outputType;
+    private String       outputPrefix;
 
     public void execute() {
         EntityManager entityManager = new EntityManager(getPackagePath());
+        entityManager.setExcludes(getExcludes());
 
         logger.info("== Executing ShowUsedProperties [Version={}]", Utils.getJarVersion());
         logger.info("== Found [{}] pacify marker files", entityManager.getPMarkerCount());
@@ -162,6 +166,14 @@ public class ShowUsedProperties {
         this.packagePath = packagePath;
     }
 
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    public void setExcludes(List<String> excludes) {
+        this.excludes = excludes;
+    }
+
     public void setOutputPrefix(String outputPrefix) {
         this.outputPrefix = outputPrefix;
     }
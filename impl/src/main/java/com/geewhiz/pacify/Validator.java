@@ -38,6 +38,7 @@ import com.geewhiz.pacify.checks.impl.CheckPlaceholderExistsInTargetFile;
 import com.geewhiz.pacify.checks.impl.CheckPropertyDuplicateDefinedInPacifyFile;
 import com.geewhiz.pacify.checks.impl.CheckPropertyDuplicateInPropertyFile;
 import com.geewhiz.pacify.checks.impl.CheckPropertyExists;
+import com.geewhiz.pacify.checks.impl.CheckPropertyHasCycle;
 import com.geewhiz.pacify.checks.impl.CheckTargetFileExist;
 import com.geewhiz.pacify.defect.Defect;
 import com.geewhiz.pacify.managers.EntityManager;
@@ -52,6 +53,7 @@ public class Validator {
 	private Logger logger = LogManager.getLogger(Validator.class.getName());
 
 	File packagePath;
+	List<String> excludes = new ArrayList<String>();
 	List<Check> checks = new ArrayList<Check>();
 	List<PMarkerCheck> pMarkerChecks = new ArrayList<PMarkerCheck>();
 
@@ -69,6 +71,7 @@ public class Validator {
 
 	public void enablePropertyResolveChecks() {
 		addCheck(new CheckPropertyDuplicateInPropertyFile(propertyResolveManager));
+		addCheck(new CheckPropertyHasCycle(propertyResolveManager));
 		addPMarkerCheck(new CheckPropertyExists(propertyResolveManager));
 	}
 
@@ -106,6 +109,18 @@ public class Validator {
 		this.packagePath = packagePath;
 	}
 
+	public List<String> getExcludes() {
+		return excludes;
+	}
+
+	/**
+	 * @param excludes
+	 *            glob patterns of files and folders which are not searched for marker files.
+	 */
+	public void setExcludes(List<String> excludes) {
+		this.excludes = excludes;
+	}
+
 	public void execute() {
 		logger.info("== Executing Validator [Version={}]", Utils.getJarVersion());
 		logger.info("   [PackagePath={}]", getPackagePath().getAbsolutePath());
@@ -152,7 +167,9 @@ public class Validator {
 	}
 
 	protected EntityManager createEntityManager() {
-		return new EntityManager(getPackagePath());
+		EntityManager entityManager = new EntityManager(getPackagePath());
+		entityManager.setExcludes(getExcludes());
+		return entityManager;
 	}
 
 }
@@ -29,7 +29,6 @@ import com.geewhiz.pacify.filter.PacifyFilter;
 import com.geewhiz.pacify.managers.EntityManager;
 import com.geewhiz.pacify.model.PFile;
 import com.geewhiz.pacify.model.PMarker;
-import com.geewhiz.pacify.utils.Utils;
 
 public class CheckForNotReplacedTokens implements PMarkerCheck {
 
@@ -38,9 +37,9 @@ public class CheckForNotReplacedTokens implements PMarkerCheck {
         LinkedHashSet<Defect> defects = new LinkedHashSet<Defect>();
 
         for (PFile pFile : entityManager.getPFilesFrom(pMarker)) {
-            if (pFile.getFile() == null || !pFile.getFile().exists())
+            if (!pFile.fileExists())
                 continue;
-            PacifyFilter filter = getFilterForPFile(pFile);
+            PacifyFilter filter = getFilterForPFile(entityManager, pFile);
             if (filter == null)
                 continue;
             defects.addAll(filter.checkForNotReplacedTokens(pFile));
@@ -49,9 +48,9 @@ public class CheckForNotReplacedTokens implements PMarkerCheck {
         return defects;
     }
 
-    private PacifyFilter getFilterForPFile(PFile pFile) {
+    private PacifyFilter getFilterForPFile(EntityManager entityManager, PFile pFile) {
         try {
-            return Utils.getPacifyFilter(pFile);
+            return entityManager.getPacifyFilter(pFile);
         } catch (DefectException e) {
             // is checked before, so we dont need to check this.
             return null;
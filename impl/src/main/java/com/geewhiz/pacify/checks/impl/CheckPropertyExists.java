@@ -24,10 +24,8 @@ import java.util.LinkedHashSet;
 
 import com.geewhiz.pacify.checks.PMarkerCheck;
 import com.geewhiz.pacify.defect.Defect;
-import com.geewhiz.pacify.defect.PropertyHasCycleDefect;
 import com.geewhiz.pacify.defect.PropertyNotDefinedInResolverDefect;
 import com.geewhiz.pacify.defect.ResolverDefect;
-import com.geewhiz.pacify.exceptions.CycleDetectRuntimeException;
 import com.geewhiz.pacify.exceptions.ResolverRuntimeException;
 import com.geewhiz.pacify.managers.EntityManager;
 import com.geewhiz.pacify.managers.PropertyResolveManager;
@@ -60,9 +58,6 @@ public class CheckPropertyExists implements PMarkerCheck {
                     propertyResolveManager.resolveProperty(pProperty);
                     continue;
                 }
-            } catch (CycleDetectRuntimeException ce) {
-                defects.add(new PropertyHasCycleDefect(pProperty, ce.getProperty(), ce.getCycle()));
-                continue;
             } catch (ResolverRuntimeException re) {
                 defects.add(new ResolverDefect(pProperty, re.getResolver(), re.getMessage()));
                 continue;
@@ -0,0 +1,47 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.impl
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.checks.impl;
+
+import java.util.LinkedHashSet;
+
+import com.geewhiz.pacify.checks.Check;
+import com.geewhiz.pacify.defect.Defect;
+import com.geewhiz.pacify.managers.PropertyResolveManager;
+
+/**
+ * Reports each cycle of the properties once, before the properties are resolved.
+ */
+public class CheckPropertyHasCycle implements Check {
+
+    private PropertyResolveManager propertyResolveManager;
+
+    public CheckPropertyHasCycle(PropertyResolveManager propertyResolveManager) {
+        this.propertyResolveManager = propertyResolveManager;
+    }
+
+    public LinkedHashSet<Defect> checkForErrors() {
+        LinkedHashSet<Defect> defects = new LinkedHashSet<Defect>();
+
+        defects.addAll(propertyResolveManager.checkForCycles());
+
+        return defects;
+    }
+}
@@ -22,6 +22,11 @@ package com.geewhiz.pacify.exceptions;
 
 
 
+/**
+ * @deprecated a cycle is not thrown while resolving anymore, it is reported up front by
+ *             {@link com.geewhiz.pacify.managers.PropertyResolveManager#checkForCycles()}.
+ */
+@Deprecated
 public class CycleDetectRuntimeException extends RuntimeException {
 
     private static final long serialVersionUID = 1L;
@@ -0,0 +1,64 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.impl
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.filter;
+
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Hashes the output of a filter while it is written, so the output doesn't have to be read again to store it in the
+ * {@link ReplacementManifest}.
+ */
+public class OutputRecorder {
+
+    private MessageDigest digest;
+    private String        hash;
+
+    OutputRecorder() {
+    }
+
+    /**
+     * @return a stream which writes to the given one and hashes everything which is written.
+     */
+    public OutputStream record(OutputStream os) {
+        if (digest != null) {
+            throw new IllegalStateException("The output is already recorded.");
+        }
+
+        digest = ReplacementManifest.createDigest();
+        return new DigestOutputStream(os, digest);
+    }
+
+    public boolean isRecorded() {
+        return digest != null;
+    }
+
+    /**
+     * @return the hash of the recorded output or null, if the filter didn't write through {@link #record(OutputStream)}.
+     */
+    public String getHash() {
+        if (hash == null && digest != null) {
+            hash = ReplacementManifest.toHex(digest.digest());
+        }
+        return hash;
+    }
+}
@@ -20,20 +20,30 @@
 
 package com.geewhiz.pacify.filter;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import org.apache.tools.ant.types.FilterSet;
-import org.apache.tools.ant.types.FilterSetCollection;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import com.geewhiz.pacify.defect.Defect;
 import com.geewhiz.pacify.defect.NoPlaceholderInTargetFileDefect;
@@ -42,106 +52,139 @@ import com.geewhiz.pacify.defect.PlaceholderNotDefinedDefect;
 import com.geewhiz.pacify.model.PFile;
 import com.geewhiz.pacify.model.PProperty;
 import com.geewhiz.pacify.utils.FileUtils;
-import com.geewhiz.pacify.utils.RegExpUtils;
+import com.geewhiz.pacify.utils.TokenReplacer;
 
-public class PacifyTokenFilter implements PacifyFilter {
+public class PacifyTokenFilter implements OutputRecordingFilter {
+
+	private Logger           logger           = LogManager.getLogger(PacifyTokenFilter.class.getName());
+
+	private PlaceholderIndex placeholderIndex = new PlaceholderIndex();
+
+	private OutputRecorder   outputRecorder;
+
+	public PlaceholderIndex getPlaceholderIndex() {
+		return placeholderIndex;
+	}
+
+	/**
+	 * Use the index of the run, so the placeholders found while validating and filtering are known to the other calls.
+	 */
+	public void setPlaceholderIndex(PlaceholderIndex placeholderIndex) {
+		this.placeholderIndex = placeholderIndex;
+	}
+
+	@Override
+	public void setOutputRecorder(OutputRecorder outputRecorder) {
+		this.outputRecorder = outputRecorder;
+	}
 
 	@Override
 	public LinkedHashSet<Defect> filter(PFile pFile, Map<String, String> propertyValues) {
-		FilterSetCollection filterSetCollection = getFilterSetCollection(propertyValues, pFile.getBeginToken(), pFile.getEndToken());
+		TokenReplacer tokenReplacer = new TokenReplacer(pFile.getBeginToken(), pFile.getEndToken(), propertyValues);
+
+		TokenReplacer.Result result;
+		if (pFile.isInMemory()) {
+			result = filterContent(pFile, tokenReplacer);
+		} else {
+			result = filterFile(pFile, tokenReplacer);
+		}
+
+		logger.debug("          [{}] tokens replaced in [{}].", result.getReplacedCount(), pFile.getPUri());
+
+		// the left over placeholders are the content of the file now
+		placeholderIndex.fileWritten(pFile, new PlaceholderIndex.Entry(pFile, countPlaceholders(result.getNotReplacedTokens())));
+
+		return new LinkedHashSet<Defect>();
+	}
+
+	private TokenReplacer.Result filterContent(PFile pFile, TokenReplacer tokenReplacer) {
+		ByteArrayOutputStream content = new ByteArrayOutputStream(pFile.getContent().length);
+
+		TokenReplacer.Result result;
 
+		Reader reader = null;
+		Writer writer = null;
 		try {
-			File fileToFilter = pFile.getFile();
-			File tmpFile = FileUtils.createEmptyFileWithSamePermissions(fileToFilter);
-
-			org.apache.tools.ant.util.FileUtils.getFileUtils().copyFile(fileToFilter, tmpFile, filterSetCollection, true, true, pFile.getEncoding());
-
-			FileUtils.setPosixPermissions(FileUtils.getPosixPermissions(fileToFilter), tmpFile);
-
-			
-			FileUtils.deleteFile(fileToFilter);
-            
-            try {
-    			org.apache.commons.io.FileUtils.moveFile(tmpFile, fileToFilter);
-    		} catch (IOException e) {
-    			throw new RuntimeException("Couldn't rename filtered file from [" + tmpFile.getPath() + "] to [" + fileToFilter.getPath() + "]... Aborting!", e);
-    		}
-			
+			reader = new InputStreamReader(pFile.openInputStream(), Charsets.toCharset(pFile.getEncoding()));
+			writer = new OutputStreamWriter(record(content), Charsets.toCharset(pFile.getEncoding()));
+
+			result = tokenReplacer.replace(reader, writer);
+
+			writer.close();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			IOUtils.closeQuietly(reader);
+			IOUtils.closeQuietly(writer);
 		}
 
-		return new LinkedHashSet<Defect>();
+		pFile.setContent(content.toByteArray());
+
+		return result;
 	}
 
-	private FilterSetCollection getFilterSetCollection(Map<String, String> propertyValues, String beginToken, String endToken) {
-		FilterSet filterSet = getFilterSet(propertyValues, beginToken, endToken);
+	private TokenReplacer.Result filterFile(PFile pFile, TokenReplacer tokenReplacer) {
+		File fileToFilter = pFile.getFile();
+		File tmpFile = FileUtils.createSiblingFileWithSamePermissions(fileToFilter);
 
-		FilterSetCollection executionFilters = new FilterSetCollection();
-		executionFilters.addFilterSet(filterSet);
+		TokenReplacer.Result result;
 
-		return executionFilters;
-	}
+		Reader reader = null;
+		Writer writer = null;
+		try {
+			reader = new InputStreamReader(new FileInputStream(fileToFilter), Charsets.toCharset(pFile.getEncoding()));
+			writer = new BufferedWriter(new OutputStreamWriter(record(new FileOutputStream(tmpFile)), Charsets.toCharset(pFile.getEncoding())));
 
-	private FilterSet getFilterSet(Map<String, String> propertyValues, String beginToken, String endToken) {
-		FilterSet filterSet = new FilterSet();
+			result = tokenReplacer.replace(reader, writer);
 
-		filterSet.setBeginToken(beginToken);
-		filterSet.setEndToken(endToken);
+			writer.close();
+			reader.close();
 
-		for (Entry<String, String> entry : propertyValues.entrySet()) {
-			filterSet.addFilter(entry.getKey(), entry.getValue());
+			FileUtils.replaceFile(tmpFile, fileToFilter);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			IOUtils.closeQuietly(reader);
+			IOUtils.closeQuietly(writer);
+			// only there if something went wrong
+			org.apache.commons.io.FileUtils.deleteQuietly(tmpFile);
 		}
-		return filterSet;
+
+		return result;
+	}
+
+	private OutputStream record(OutputStream os) throws IOException {
+		if (outputRecorder == null) {
+			return os;
+		}
+		return outputRecorder.record(os);
 	}
 
 	@Override
 	public LinkedHashSet<Defect> checkForNotReplacedTokens(PFile pFile) {
 		LinkedHashSet<Defect> defects = new LinkedHashSet<Defect>();
 
-		String fileContent = com.geewhiz.pacify.utils.FileUtils.getFileInOneString(pFile.getFile(), pFile.getEncoding());
-		if (fileContent == null) {
-			return defects;
-		}
-
-		for (String property : getNotReplacedProperties(fileContent, pFile.getBeginToken(), pFile.getEndToken())) {
+		for (String property : getPlaceholders(pFile).getPlaceholderNames()) {
 			Defect defect = new NotReplacedPropertyDefect(pFile, property);
 			defects.add(defect);
 		}
 		return defects;
 	}
 
-	private List<String> getNotReplacedProperties(String fileContent, String beginToken, String endToken) {
-		List<String> result = new ArrayList<String>();
-
-		Pattern pattern = RegExpUtils.getDefaultPattern(beginToken, endToken);
-		Matcher matcher = pattern.matcher(fileContent);
-
-		while (matcher.find()) {
-			String propertyId = matcher.group(1);
-			result.add(propertyId);
-		}
-
-		return result;
-	}
-
 	@Override
 	public LinkedHashSet<Defect> checkPlaceHolderExists(PFile pFile) {
 		LinkedHashSet<Defect> defects = new LinkedHashSet<Defect>();
 
-		String fileContent = com.geewhiz.pacify.utils.FileUtils.getFileInOneString(pFile.getFile(), pFile.getEncoding());
-		if (fileContent == null) {
-			return defects;
-		}
+		PlaceholderIndex.Entry placeholders = getPlaceholders(pFile);
 
-		checkAllPropertiesExistsInTargetFile(defects, pFile, fileContent);
-		checkForNotReferencedProperties(defects, pFile, fileContent);
+		checkAllPropertiesExistsInTargetFile(defects, pFile, placeholders);
+		checkForNotReferencedProperties(defects, pFile, placeholders);
 
 		return defects;
 	}
 
-	private void checkForNotReferencedProperties(LinkedHashSet<Defect> defects, PFile pFile, String fileContent) {
-		Set<String> notReferencedPlaceHolders = getNotReferencedPlaceHolders(fileContent, pFile);
+	private void checkForNotReferencedProperties(LinkedHashSet<Defect> defects, PFile pFile, PlaceholderIndex.Entry placeholders) {
+		Set<String> notReferencedPlaceHolders = getNotReferencedPlaceHolders(placeholders, pFile);
 
 		for (String notReferencedPlaceHolder : notReferencedPlaceHolders) {
 			Defect defect = new PlaceholderNotDefinedDefect(pFile, notReferencedPlaceHolder);
@@ -149,9 +192,9 @@ public class PacifyTokenFilter implements PacifyFilter {
 		}
 	}
 
-	private void checkAllPropertiesExistsInTargetFile(LinkedHashSet<Defect> defects, PFile pFile, String fileContent) {
+	private void checkAllPropertiesExistsInTargetFile(LinkedHashSet<Defect> defects, PFile pFile, PlaceholderIndex.Entry placeholders) {
 		for (PProperty pProperty : pFile.getPProperties()) {
-			boolean exists = doesPropertyExistInFile(fileContent, pProperty);
+			boolean exists = placeholders.contains(pProperty.getName());
 			if (exists) {
 				continue;
 			}
@@ -160,52 +203,66 @@ public class PacifyTokenFilter implements PacifyFilter {
 		}
 	}
 
-	private Set<String> getNotReferencedPlaceHolders(String fileContent, PFile pFile) {
+	private Set<String> getNotReferencedPlaceHolders(PlaceholderIndex.Entry placeholders, PFile pFile) {
 		Set<String> notReferencedPlaceHolder = new TreeSet<String>();
 
-		// are all properties referenced from the marker file?
-		Set<String> placeHolders = getAllPlaceHolders(fileContent, pFile);
-		for (String placeHolder : placeHolders) {
-			boolean foundInMarkerFile = false;
-
-			for (PProperty pProperty : pFile.getPProperties()) {
-				if (placeHolder.equals(pProperty.getName())) {
-					foundInMarkerFile = true;
-					break;
-				}
-			}
+		Set<String> propertyNames = new HashSet<String>();
+		for (PProperty pProperty : pFile.getPProperties()) {
+			propertyNames.add(pProperty.getName());
+		}
 
-			if (!foundInMarkerFile) {
+		// are all properties referenced from the marker file?
+		for (String placeHolder : placeholders.getPlaceholderNames()) {
+			if (!propertyNames.contains(placeHolder)) {
 				notReferencedPlaceHolder.add(placeHolder);
 			}
 		}
 		return notReferencedPlaceHolder;
 	}
 
-	private Set<String> getAllPlaceHolders(String fileContent, PFile pFile) {
-		Pattern pattern = RegExpUtils.getDefaultPattern(pFile.getBeginToken(), pFile.getEndToken());
-		Matcher matcher = getPlaceHolderMatcher(fileContent, pattern);
+	/**
+	 * Returns the placeholders of the file from the index. If the file is not indexed yet, it is read once and the result is put into the index.
+	 */
+	private PlaceholderIndex.Entry getPlaceholders(PFile pFile) {
+		PlaceholderIndex.Entry entry = placeholderIndex.get(pFile);
+		if (entry != null) {
+			return entry;
+		}
+
+		// the properties of the marker file are matched like in the filter, all other placeholders are found like the left overs.
+		Map<String, String> propertyNames = new HashMap<String, String>();
+		for (PProperty pProperty : pFile.getPProperties()) {
+			propertyNames.put(pProperty.getName(), pProperty.getName());
+		}
+		TokenReplacer tokenReplacer = new TokenReplacer(pFile.getBeginToken(), pFile.getEndToken(), propertyNames);
 
-		Set<String> result = new TreeSet<String>();
+		TokenReplacer.Result result;
 
-		while (matcher.find()) {
-			String placeHolder = matcher.group(1);
-			result.add(placeHolder);
+		Reader reader = null;
+		try {
+			reader = new InputStreamReader(pFile.openInputStream(), Charsets.toCharset(pFile.getEncoding()));
+			result = tokenReplacer.replace(reader, null);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			IOUtils.closeQuietly(reader);
 		}
 
-		return result;
-	}
+		Map<String, Integer> placeholders = new LinkedHashMap<String, Integer>(result.getReplacedTokens());
+		placeholders.putAll(countPlaceholders(result.getNotReplacedTokens()));
 
-	private boolean doesPropertyExistInFile(String fileContent, PProperty pProperty) {
-		String beginToken = pProperty.getPFile().getBeginToken();
-		String endToken = pProperty.getPFile().getEndToken();
+		entry = new PlaceholderIndex.Entry(pFile, placeholders);
+		placeholderIndex.put(pFile, entry);
 
-		Pattern pattern = RegExpUtils.getPatternFor(beginToken, endToken, Pattern.quote(pProperty.getName()));
-		return getPlaceHolderMatcher(fileContent, pattern).find();
+		return entry;
 	}
 
-	private Matcher getPlaceHolderMatcher(String fileContent, Pattern pattern) {
-		Matcher matcher = pattern.matcher(fileContent);
-		return matcher;
+	private Map<String, Integer> countPlaceholders(List<String> placeholders) {
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		for (String placeholder : placeholders) {
+			Integer count = result.get(placeholder);
+			result.put(placeholder, count == null ? 1 : count + 1);
+		}
+		return result;
 	}
 }
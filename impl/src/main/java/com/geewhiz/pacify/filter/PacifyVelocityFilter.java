@@ -20,15 +20,22 @@
 
 package com.geewhiz.pacify.filter;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 
-import org.apache.commons.io.output.FileWriterWithEncoding;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -39,11 +46,27 @@ import com.geewhiz.pacify.defect.WrongTokenDefinedDefect;
 import com.geewhiz.pacify.model.PFile;
 import com.geewhiz.pacify.utils.FileUtils;
 
-public class PacifyVelocityFilter implements PacifyFilter {
+public class PacifyVelocityFilter implements OutputRecordingFilter {
+
+    private static final String                                        BEGIN_TOKEN = "${";
+    private static final String                                        END_TOKEN   = "}";
+
+    private static final int                                           MAX_ENGINES = 64;
+    private static final int                                           MAX_TREES   = 16;
+
+    // the filter is created for each file, but creating and initializing an engine is expensive, so we share one per folder
+    private static final Map<File, VelocityEngine>                     engines     = createLRUMap(MAX_ENGINES);
+
+    // the files of one pacify file mostly use the same properties, so the property names are only split once per property set
+    private static final Map<Map<String, String>, Map<String, Object>> trees       = createLRUMap(MAX_TREES);
+
+    private OutputRecorder                                             outputRecorder;
+
+    @Override
+    public void setOutputRecorder(OutputRecorder outputRecorder) {
+        this.outputRecorder = outputRecorder;
+    }
 
-    private static final String BEGIN_TOKEN = "${";
-    private static final String END_TOKEN   = "}";
-    
     @Override
     public LinkedHashSet<Defect> filter(PFile pFile, Map<String, String> propertyValues) {
         LinkedHashSet<Defect> defects = new LinkedHashSet<Defect>();
@@ -62,79 +85,115 @@ public class PacifyVelocityFilter implements PacifyFilter {
         }
 
         File fileToFilter = pFile.getFile();
-        File tmpFile = FileUtils.createEmptyFileWithSamePermissions(fileToFilter);
+        File tmpFile = FileUtils.createSiblingFileWithSamePermissions(fileToFilter);
 
         Template template = getTemplate(fileToFilter, pFile.getEncoding());
         Context context = getContext(propertyValues, fileToFilter);
 
+        Writer writer = null;
         try {
-            FileWriterWithEncoding fw = new FileWriterWithEncoding(tmpFile, pFile.getEncoding());
-            template.merge(context, fw);
-            fw.close();
-            
-            FileUtils.deleteFile(fileToFilter);
-            
-            try {
-    			org.apache.commons.io.FileUtils.moveFile(tmpFile, fileToFilter);
-    		} catch (IOException e) {
-    			throw new RuntimeException("Couldn't rename filtered file from [" + tmpFile.getPath() + "] to [" + fileToFilter.getPath() + "]... Aborting!", e);
-    		}
-            
+            OutputStream os = new FileOutputStream(tmpFile);
+            if (outputRecorder != null) {
+                os = outputRecorder.record(os);
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(os, Charsets.toCharset(pFile.getEncoding())));
+            template.merge(context, writer);
+            writer.close();
+
+            FileUtils.replaceFile(tmpFile, fileToFilter);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+            // only there if something went wrong
+            org.apache.commons.io.FileUtils.deleteQuietly(tmpFile);
         }
 
         return defects;
     }
 
     private Template getTemplate(File file, String encoding) {
-        Properties prop = new Properties();
-        prop.put("file.resource.loader.path", file.getParentFile().getAbsolutePath());
+        return getEngine(file.getParentFile().getAbsoluteFile()).getTemplate(file.getName(), encoding);
+    }
 
-        VelocityEngine ve = new VelocityEngine();
-        ve.init(prop);
+    private VelocityEngine getEngine(File folder) {
+        synchronized (engines) {
+            VelocityEngine ve = engines.get(folder);
+            if (ve == null) {
+                Properties prop = new Properties();
+                prop.put("file.resource.loader.path", folder.getPath());
 
-        Template template = ve.getTemplate(file.getName(), encoding);
-        return template;
+                ve = new VelocityEngine();
+                ve.init(prop);
+                engines.put(folder, ve);
+            }
+            return ve;
+        }
     }
 
+    /**
+     * @return a new context for the file. The tree of the properties is shared, but each file gets a copy of it, so a template can still
+     *         modify it, e.g. with $map.put(), without changing the values of other files.
+     */
     private Context getContext(Map<String, String> propertyValues, File file) {
-        Context context = new VelocityContext();
+        Map<String, Object> tree;
+        synchronized (trees) {
+            tree = trees.get(propertyValues);
+            if (tree == null) {
+                tree = createContextTree(propertyValues);
+                trees.put(new HashMap<String, String>(propertyValues), tree);
+            }
+        }
+        return new VelocityContext(copy(tree));
+    }
+
+    private Map<String, Object> createContextTree(Map<String, String> propertyValues) {
+        Map<String, Object> root = new HashMap<String, Object>();
         for (Entry<String, String> entry : propertyValues.entrySet()) {
-            addProperty(context, entry.getKey(), entry.getValue());
+            addProperty(root, entry.getKey(), entry.getValue());
         }
-        return context;
+        return root;
     }
 
     @SuppressWarnings("unchecked")
-    private void addProperty(Context context, String propertyName, String propertyValue) {
+    private void addProperty(Map<String, Object> root, String propertyName, String propertyValue) {
         String[] split = propertyName.split("\\.");
 
-        if (split.length == 1) {
-            context.put(propertyName, propertyValue);
-            return;
-        }
-
-        Map<String, Object> lastNode = null;
+        Map<String, Object> lastNode = root;
         for (int i = 0; i < split.length - 1; i++) {
             String level = split[i];
-            if (lastNode == null) {
-                if (context.get(level) == null) {
-                    context.put(level, new HashMap<String, Object>());
-                }
-                lastNode = (Map<String, Object>) context.get(level);
-                continue;
-            }
             if (lastNode.get(level) == null) {
                 lastNode.put(level, new HashMap<String, Object>());
             }
-
-            lastNode = (Map<String, Object>) lastNode.get(split[i]);
+            lastNode = (Map<String, Object>) lastNode.get(level);
         }
 
         lastNode.put(split[split.length - 1], propertyValue);
     }
 
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> copy(Map<String, Object> node) {
+        Map<String, Object> result = new HashMap<String, Object>(node);
+        for (Entry<String, Object> entry : result.entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                entry.setValue(copy((Map<String, Object>) entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    private static <K, V> Map<K, V> createLRUMap(final int maxEntries) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
     @Override
     public LinkedHashSet<Defect> checkForNotReplacedTokens(PFile pFile) {
         // TODO: need to implement for velocity
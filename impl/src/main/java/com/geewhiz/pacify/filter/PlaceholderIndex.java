@@ -0,0 +1,157 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.impl
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.filter;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.geewhiz.pacify.model.PFile;
+
+/**
+ * Holds the placeholders of the files of one run, so a file has to be read only once for the validation, the filtering and the check for not
+ * replaced tokens. An entry is only returned as long as the size and the modification time of the file didn't change.
+ */
+public class PlaceholderIndex {
+
+    private Map<PFile, Entry> entries = new IdentityHashMap<PFile, Entry>();
+
+    /**
+     * @return the entry of the pfile or null if there is none or the file was modified in the meantime.
+     */
+    public synchronized Entry get(PFile pFile) {
+        Entry entry = entries.get(pFile);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isUpToDate(pFile)) {
+            entries.remove(pFile);
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void put(PFile pFile, Entry entry) {
+        entries.put(pFile, entry);
+    }
+
+    /**
+     * The file of the pfile was written, the entries of all other pfiles which point to the same file are removed. Content in memory belongs
+     * to one pfile only.
+     */
+    public synchronized void fileWritten(PFile pFile, Entry entry) {
+        if (!pFile.isInMemory()) {
+            Path file = normalize(pFile.getFile());
+
+            for (Iterator<PFile> iterator = entries.keySet().iterator(); iterator.hasNext();) {
+                PFile other = iterator.next();
+                if (other != pFile && !other.isInMemory() && file.equals(normalize(other.getFile()))) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        entries.put(pFile, entry);
+    }
+
+    /**
+     * Takes over the current size and modification time of the file, if the file was touched after the entry was created.
+     */
+    public synchronized void refresh(PFile pFile) {
+        Entry entry = entries.get(pFile);
+        if (entry == null) {
+            return;
+        }
+        entries.put(pFile, new Entry(pFile, entry.getPlaceholders()));
+    }
+
+    /**
+     * @return how often the given placeholders occur in the file or null if the pfile is not indexed.
+     */
+    public synchronized Integer getOccurrences(PFile pFile, Collection<String> placeholders) {
+        Entry entry = get(pFile);
+        if (entry == null) {
+            return null;
+        }
+
+        int result = 0;
+        for (String placeholder : placeholders) {
+            result += entry.getOccurrences(placeholder);
+        }
+        return result;
+    }
+
+    private static Path normalize(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    public static class Entry {
+
+        private long                 size;
+        private long                 lastModified;
+        private Map<String, Integer> placeholders;
+
+        /**
+         * @param placeholders
+         *            the placeholders of the file and how often they occur.
+         */
+        public Entry(PFile pFile, Map<String, Integer> placeholders) {
+            this.size = pFile.getSize();
+            this.lastModified = pFile.getLastModified();
+            this.placeholders = Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(placeholders));
+        }
+
+        private boolean isUpToDate(PFile pFile) {
+            return size == pFile.getSize() && lastModified == pFile.getLastModified();
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public Map<String, Integer> getPlaceholders() {
+            return placeholders;
+        }
+
+        public Set<String> getPlaceholderNames() {
+            return placeholders.keySet();
+        }
+
+        public boolean contains(String placeholder) {
+            return placeholders.containsKey(placeholder);
+        }
+
+        public int getOccurrences(String placeholder) {
+            Integer count = placeholders.get(placeholder);
+            return count == null ? 0 : count;
+        }
+    }
+}
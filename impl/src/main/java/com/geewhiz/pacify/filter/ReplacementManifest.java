@@ -0,0 +1,447 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.impl
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+package com.geewhiz.pacify.filter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.geewhiz.pacify.model.PFile;
+import com.geewhiz.pacify.model.PMarker;
+import com.geewhiz.pacify.utils.FileUtils;
+
+/**
+ * Remembers for each target of a package, a file or a top level archive, its template, the hash of the values which were used and the output
+ * of the last run. If the template and the values of a target didn't change, the output of the last run is taken over instead of filtering the
+ * template again. An archive is taken over as a whole, so it isn't rewritten.
+ * <p>
+ * A template counts as unchanged, if its size and modification time are the same as in the last run. Only if they differ, the template is
+ * hashed and compared with the hash of the last run. The outputs are kept in a folder next to the manifest, they are hard links to the
+ * targets of the run which wrote them, if possible. An output which was modified afterwards is not taken over.
+ * <p>
+ * The templates are needed for this, so it applies to runs which start from them, e.g. with a copy destination or a freshly unpacked package.
+ * A package which was replaced in place has no marker files anymore, so it isn't processed again anyway. If the manifest is missing or was
+ * written by another version, all targets are filtered.
+ */
+public class ReplacementManifest {
+
+    private static final String VERSION_KEY = "pacify.manifest.version";
+    private static final String VERSION     = "3";
+
+    private Logger              logger      = LogManager.getLogger(ReplacementManifest.class.getName());
+
+    private File                manifestFile;
+    private File                packagePath;
+    private File                outputFolder;
+
+    private Map<String, Entry>  lastRun     = new HashMap<String, Entry>();
+    private Map<String, Entry>  thisRun     = new TreeMap<String, Entry>();
+    // the size and the modification time of each output, as it was stored
+    private Map<String, Entry>  outputs     = new HashMap<String, Entry>();
+    private Set<Path>           reused      = new HashSet<Path>();
+
+    public ReplacementManifest(File manifestFile, File packagePath) {
+        this.manifestFile = manifestFile;
+        this.packagePath = packagePath;
+        this.outputFolder = new File(manifestFile.getAbsolutePath() + ".outputs");
+        read();
+    }
+
+    /**
+     * Remembers the size and the modification time of the template of a target, before it is filtered.
+     */
+    public Template getTemplate(PMarker pMarker, File file) {
+        return new Template(getKey(pMarker, file), file);
+    }
+
+    /**
+     * @return the output of the last run, if the template and the values of the target are the same as in the last run, otherwise null. The
+     *         target is remembered as reused.
+     */
+    public File getOutput(Template template, String valuesHash) {
+        Entry entry;
+        synchronized (this) {
+            entry = lastRun.get(template.key);
+        }
+        if (entry == null || !isUnchanged(template, entry) || !entry.valuesHash.equals(valuesHash)) {
+            return null;
+        }
+
+        File output = new File(outputFolder, entry.outputHash);
+        if (output.length() != entry.outputSize || output.lastModified() != entry.outputModified) {
+            // missing or written after it was stored
+            return null;
+        }
+
+        synchronized (this) {
+            thisRun.put(template.key, new Entry(template, valuesHash, entry.outputHash, entry.outputSize, entry.outputModified));
+            reused.add(normalize(template.file));
+        }
+        return output;
+    }
+
+    /**
+     * @return a recorder, which hashes the output of a file while it is filtered.
+     */
+    public OutputRecorder createOutputRecorder() {
+        return new OutputRecorder();
+    }
+
+    /**
+     * Stores the output of a target, which was filtered in this run.
+     * 
+     * @param outputHash
+     *            the hash of the output, if it was recorded while the output was written, otherwise null and the output is read.
+     */
+    public void filtered(Template template, String valuesHash, File target, String outputHash) {
+        if (outputHash == null) {
+            outputHash = hashFile(target);
+        }
+
+        synchronized (this) {
+            File output = new File(outputFolder, outputHash);
+            Entry stored = outputs.get(outputHash);
+            if (stored == null || output.length() != stored.outputSize || output.lastModified() != stored.outputModified) {
+                store(target, output);
+                stored = new Entry(null, null, outputHash, output.length(), output.lastModified());
+                outputs.put(outputHash, stored);
+            }
+            thisRun.put(template.key, new Entry(template, valuesHash, outputHash, stored.outputSize, stored.outputModified));
+        }
+    }
+
+    /**
+     * @return true if the output of the last run was taken over for the target. A reused archive is complete, so it isn't rewritten.
+     */
+    public synchronized boolean isReused(File target) {
+        return reused.contains(normalize(target));
+    }
+
+    /**
+     * Writes the entries of this run. Targets which were not processed in this run are not taken over, neither are their outputs.
+     */
+    public synchronized void write() {
+        Properties result = new Properties();
+        for (String key : thisRun.keySet()) {
+            result.setProperty(key, thisRun.get(key).toString());
+        }
+        result.setProperty(VERSION_KEY, VERSION);
+
+        File parent = manifestFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+
+        File tmp = manifestFile.exists() ? FileUtils.createSiblingFileWithSamePermissions(manifestFile) : createTempFile(parent);
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tmp);
+            result.store(os, "pacify replacement manifest of [" + packagePath.getAbsolutePath() + "]");
+            os.close();
+            FileUtils.replaceFile(tmp, manifestFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't write manifest [" + manifestFile.getAbsolutePath() + "].", e);
+        } finally {
+            IOUtils.closeQuietly(os);
+            tmp.delete();
+        }
+
+        logger.debug("Wrote manifest [{}] with [{}] entries, [{}] of them reused.", manifestFile.getAbsolutePath(), thisRun.size(), reused.size());
+
+        removeUnusedOutputs();
+    }
+
+    private void removeUnusedOutputs() {
+        String[] outputNames = outputFolder.list();
+        if (outputNames == null) {
+            return;
+        }
+
+        Set<String> used = new HashSet<String>();
+        for (Entry entry : thisRun.values()) {
+            used.add(entry.outputHash);
+        }
+
+        for (String output : outputNames) {
+            // the temporary files start with a dot
+            if (!output.startsWith(".") && !used.contains(output)) {
+                org.apache.commons.io.FileUtils.deleteQuietly(new File(outputFolder, output));
+            }
+        }
+    }
+
+    /**
+     * @return the hash of the values and everything else, which has an effect on the output of the filter.
+     */
+    public static String hashValues(PFile pFile, Map<String, String> propertyValues) {
+        MessageDigest digest = createDigest();
+        update(digest, pFile.getFilterClass());
+        update(digest, pFile.getEncoding());
+        update(digest, pFile.getBeginToken());
+        update(digest, pFile.getEndToken());
+
+        Map<String, String> sorted = new TreeMap<String, String>(propertyValues);
+        for (String property : sorted.keySet()) {
+            update(digest, property);
+            update(digest, sorted.get(property));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param valuesHashes
+     *            the hash of the values of each pfile of an archive, by the uri of the pfile.
+     * @return the hash of the values of the archive.
+     */
+    public static String hashValues(Map<String, String> valuesHashes) {
+        MessageDigest digest = createDigest();
+
+        Map<String, String> sorted = new TreeMap<String, String>(valuesHashes);
+        for (String pUri : sorted.keySet()) {
+            update(digest, pUri);
+            update(digest, sorted.get(pUri));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * The template is unchanged, if its size and modification time are the same as in the last run. Otherwise its content is compared.
+     */
+    private boolean isUnchanged(Template template, Entry entry) {
+        if (template.size == entry.templateSize && template.modified == entry.templateModified) {
+            template.hash = entry.templateHash;
+            return true;
+        }
+
+        template.hash = hashFile(template.file);
+        return template.hash.equals(entry.templateHash);
+    }
+
+    /**
+     * The output is a hard link to the target, so it doesn't take up space twice. If the file system doesn't support it, it is copied.
+     */
+    private void store(File target, File output) {
+        if (!outputFolder.exists() && !outputFolder.mkdirs()) {
+            throw new RuntimeException("Couldn't create folder [" + outputFolder.getAbsolutePath() + "].");
+        }
+
+        File tmp = new File(outputFolder, "." + output.getName() + ".tmp");
+        tmp.delete();
+        try {
+            try {
+                Files.createLink(tmp.toPath(), target.toPath());
+            } catch (IOException e) {
+                logger.debug("Couldn't link [" + output + "] to [" + target + "], copying it.", e);
+                org.apache.commons.io.FileUtils.copyFile(target, tmp);
+            } catch (UnsupportedOperationException e) {
+                logger.debug("Couldn't link [" + output + "] to [" + target + "], copying it.", e);
+                org.apache.commons.io.FileUtils.copyFile(target, tmp);
+            }
+            FileUtils.replaceFile(tmp, output);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't store the output of [" + target.getAbsolutePath() + "].", e);
+        } finally {
+            // only there if something went wrong
+            org.apache.commons.io.FileUtils.deleteQuietly(tmp);
+        }
+    }
+
+    private void read() {
+        if (!manifestFile.exists()) {
+            logger.info("   No manifest [{}] found, all files are filtered.", manifestFile.getAbsolutePath());
+            return;
+        }
+
+        Properties properties = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(manifestFile);
+            properties.load(is);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't read manifest [" + manifestFile.getAbsolutePath() + "].", e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+
+        if (!VERSION.equals(properties.getProperty(VERSION_KEY))) {
+            logger.info("   Manifest [{}] is stale, all files are filtered.", manifestFile.getAbsolutePath());
+            return;
+        }
+
+        properties.remove(VERSION_KEY);
+        for (String key : properties.stringPropertyNames()) {
+            Entry entry = Entry.parse(properties.getProperty(key));
+            if (entry != null) {
+                lastRun.put(key, entry);
+                outputs.put(entry.outputHash, entry);
+            }
+        }
+    }
+
+    private File createTempFile(File parent) {
+        try {
+            return File.createTempFile("." + manifestFile.getName() + ".", ".tmp", parent);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String getKey(PMarker pMarker, File target) {
+        Path packageFolder = normalize(packagePath);
+        return FilenameUtils.separatorsToUnix(packageFolder.relativize(normalize(pMarker.getFile())).toString()) + "|"
+                + FilenameUtils.separatorsToUnix(packageFolder.relativize(normalize(target)).toString());
+    }
+
+    private static Path normalize(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    static String hashFile(File file) {
+        MessageDigest digest = createDigest();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't read [" + file.getAbsolutePath() + "].", e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        // separates the values, so "ab" + "c" is not the same as "a" + "bc"
+        digest.update((byte) 0);
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The template of a target as it was before it was filtered. Its hash is only known, if it was compared with the last run.
+     */
+    public static class Template {
+
+        private String key;
+        private File   file;
+        private long   size;
+        private long   modified;
+        private String hash;
+
+        private Template(String key, File file) {
+            this.key = key;
+            this.file = file;
+            this.size = file.length();
+            this.modified = file.lastModified();
+        }
+    }
+
+    private static class Entry {
+
+        private long   templateSize;
+        private long   templateModified;
+        private String templateHash;
+        private String valuesHash;
+        private String outputHash;
+        private long   outputSize;
+        private long   outputModified;
+
+        private Entry(long templateSize, long templateModified, String templateHash, String valuesHash, String outputHash, long outputSize,
+                long outputModified) {
+            this.templateSize = templateSize;
+            this.templateModified = templateModified;
+            this.templateHash = templateHash;
+            this.valuesHash = valuesHash;
+            this.outputHash = outputHash;
+            this.outputSize = outputSize;
+            this.outputModified = outputModified;
+        }
+
+        private Entry(Template template, String valuesHash, String outputHash, long outputSize, long outputModified) {
+            this(template != null ? template.size : 0, template != null ? template.modified : 0,
+                    template != null && template.hash != null ? template.hash : "", valuesHash, outputHash, outputSize, outputModified);
+        }
+
+        /**
+         * @return the entry or null, if the value is not an entry of this version.
+         */
+        private static Entry parse(String value) {
+            String[] fields = value.split(",", -1);
+            if (fields.length != 7) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], fields[3], fields[4], Long.parseLong(fields[5]),
+                        Long.parseLong(fields[6]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return templateSize + "," + templateModified + "," + templateHash + "," + valuesHash + "," + outputHash + "," + outputSize + ","
+                    + outputModified;
+        }
+    }
+}
@@ -21,34 +21,43 @@
 package com.geewhiz.pacify.managers;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
-import javax.xml.XMLConstants;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.geewhiz.pacify.defect.Defect;
+import com.geewhiz.pacify.defect.DefectException;
 import com.geewhiz.pacify.defect.XMLValidationDefect;
-import com.geewhiz.pacify.model.ObjectFactory;
+import com.geewhiz.pacify.filter.PacifyFilter;
+import com.geewhiz.pacify.filter.PacifyTokenFilter;
+import com.geewhiz.pacify.filter.PlaceholderIndex;
+import com.geewhiz.pacify.filter.ReplacementManifest;
 import com.geewhiz.pacify.model.PArchive;
 import com.geewhiz.pacify.model.PFile;
 import com.geewhiz.pacify.model.PMarker;
 import com.geewhiz.pacify.model.PProperty;
+import com.geewhiz.pacify.model.utils.DirectoryIndex;
 import com.geewhiz.pacify.model.utils.PArchiveResolver;
 import com.geewhiz.pacify.model.utils.PFileResolver;
+import com.geewhiz.pacify.model.utils.PMarkerUnmarshaller;
 import com.geewhiz.pacify.model.utils.PacifyFilesFinder;
 import com.geewhiz.pacify.postprocessor.DefaultPMarkerPostProcessor;
 import com.geewhiz.pacify.postprocessor.PostProcessor;
+import com.geewhiz.pacify.utils.Utils;
 
 public class EntityManager {
 
@@ -57,28 +66,61 @@ public class EntityManager {
     private File          startPath;
     private List<PMarker> pMarkers;
 
-    private JAXBContext   jaxbContext;
-    private Schema        schema;
-
     private PostProcessor postProcessor = new DefaultPMarkerPostProcessor(this);
 
+    private PlaceholderIndex placeholderIndex = new PlaceholderIndex();
+
+    private DirectoryIndex   directoryIndex   = new DirectoryIndex();
+
+    private ReplacementManifest replacementManifest;
+
     private boolean       initialized    = false;
 
+    private int           threadCount    = 1;
+
+    private List<String>  excludes       = new ArrayList<String>();
+    private List<File>    markerFiles;
+
     public EntityManager(File startPath) {
         this.startPath = startPath;
+    }
 
-        try {
-            jaxbContext = JAXBContext.newInstance(ObjectFactory.class);
+    public int getThreadCount() {
+        return threadCount;
+    }
 
-            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-            schema = factory.newSchema(new StreamSource(EntityManager.class.getClassLoader().getResourceAsStream("pacify.xsd")));
-        } catch (Exception e) {
-            throw new RuntimeException("Couldn't instanciate jaxb.", e);
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1 but was [" + threadCount + "]");
         }
+        this.threadCount = threadCount;
+    }
+
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * @param excludes
+     *            glob patterns of files and folders which are not searched for marker files.
+     */
+    public void setExcludes(List<String> excludes) {
+        this.excludes = excludes;
+        this.markerFiles = null;
     }
 
     public int getPMarkerCount() {
-        return (new PacifyFilesFinder(startPath).getPacifyFiles()).size();
+        return getMarkerFiles().size();
+    }
+
+    /**
+     * The package is searched only once for marker files.
+     */
+    public List<File> getMarkerFiles() {
+        if (markerFiles == null) {
+            markerFiles = new PacifyFilesFinder(startPath, getExcludes()).getPacifyFiles();
+        }
+        return markerFiles;
     }
 
     public LinkedHashSet<Defect> initialize() {
@@ -87,16 +129,18 @@ public class EntityManager {
             return defects;
         }
 
+        List<File> markerFiles = getMarkerFiles();
+
         pMarkers = new ArrayList<PMarker>();
-        for (File markerFile : new PacifyFilesFinder(startPath).getPacifyFiles()) {
-            try {
-                PMarker pMarker = unmarshal(markerFile);
-                pMarker.setFile(markerFile);
-
-                pMarkers.add(pMarker);
-            } catch (JAXBException e) {
-                defects.add(new XMLValidationDefect(markerFile));
-                logger.debug("Error while parsing file [" + markerFile.getAbsolutePath() + "]", e);
+        if (getThreadCount() > 1 && markerFiles.size() > 1) {
+            loadPMarkersParallel(markerFiles, defects);
+        } else {
+            for (File markerFile : markerFiles) {
+                try {
+                    pMarkers.add(loadPMarker(markerFile));
+                } catch (JAXBException e) {
+                    addXMLValidationDefect(defects, markerFile, e);
+                }
             }
         }
 
@@ -105,6 +149,80 @@ public class EntityManager {
         return defects;
     }
 
+    /**
+     * The marker files are unmarshalled via a thread pool. The results are collected in the order of the marker files, so the pmarkers and the
+     * defects are the same as in the sequential mode.
+     */
+    private void loadPMarkersParallel(List<File> markerFiles, LinkedHashSet<Defect> defects) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(getThreadCount(), markerFiles.size()));
+        try {
+            List<Future<PMarker>> tasks = new ArrayList<Future<PMarker>>();
+            for (final File markerFile : markerFiles) {
+                tasks.add(executor.submit(new Callable<PMarker>() {
+
+                    @Override
+                    public PMarker call() throws Exception {
+                        return loadPMarker(markerFile);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < markerFiles.size(); i++) {
+                try {
+                    pMarkers.add(tasks.get(i).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for the marker files.", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof JAXBException) {
+                        addXMLValidationDefect(defects, markerFiles.get(i), e.getCause());
+                    } else if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    } else {
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private PMarker loadPMarker(File markerFile) throws JAXBException {
+        PMarker pMarker = PMarkerUnmarshaller.unmarshal(markerFile);
+        pMarker.setFile(markerFile);
+        return pMarker;
+    }
+
+    private void addXMLValidationDefect(LinkedHashSet<Defect> defects, File markerFile, Throwable e) {
+        defects.add(new XMLValidationDefect(markerFile));
+        logger.debug("Error while parsing file [" + markerFile.getAbsolutePath() + "]", e);
+    }
+
+    /**
+     * Takes over the marker files of the package, which was copied to the start path of this entity manager. They are moved to the copy
+     * instead of being searched and read again.
+     * 
+     * @param packageEntityManager
+     *            initialized without defects and not used anymore afterwards, its marker files are not resolved yet.
+     */
+    public void takeOverPMarkers(EntityManager packageEntityManager) {
+        Path packagePath = packageEntityManager.startPath.getAbsoluteFile().toPath();
+
+        markerFiles = new ArrayList<File>();
+        pMarkers = new ArrayList<PMarker>();
+        for (PMarker pMarker : packageEntityManager.getPMarkers()) {
+            Path relativePath = packagePath.relativize(pMarker.getFile().getAbsoluteFile().toPath());
+            File markerFile = new File(startPath, relativePath.toString());
+
+            pMarker.setFile(markerFile);
+            markerFiles.add(markerFile);
+            pMarkers.add(pMarker);
+        }
+
+        initialized = true;
+    }
+
     public List<PMarker> getPMarkers() {
         if (pMarkers == null) {
             throw new RuntimeException("You didn't initialize the EntityManager. Call initialize().");
@@ -122,7 +240,7 @@ public class EntityManager {
         for (Object entry : pMarker.getFilesAndArchives()) {
             if (entry instanceof PFile) {
                 PFile pFile = (PFile) entry;
-                PFileResolver resolver = new PFileResolver(pFile);
+                PFileResolver resolver = new PFileResolver(pFile, getDirectoryIndex());
                 result.addAll(resolver.resolve());
             } else if (entry instanceof PArchive) {
                 PArchive pArchive = (PArchive) entry;
@@ -140,6 +258,53 @@ public class EntityManager {
         return result;
     }
 
+    /**
+     * @return the files of the package, which are written by a run: the marker files, the files and the top level archives of the markers. The
+     *         archives are not extracted for this.
+     */
+    public Set<File> getModifiedFiles() {
+        Set<File> result = new LinkedHashSet<File>(getMarkerFiles());
+
+        for (PMarker pMarker : getPMarkers()) {
+            for (Object entry : pMarker.getFilesAndArchives()) {
+                if (entry instanceof PFile) {
+                    PFile pFile = (PFile) entry;
+                    if (pFile.isUseRegExResolution()) {
+                        for (Path file : getDirectoryIndex().getFiles(pMarker.getFolder(), Pattern.compile(pFile.getRelativePath()))) {
+                            result.add(file.toFile());
+                        }
+                    } else {
+                        result.add(new File(pMarker.getFolder(), pFile.getRelativePath()));
+                    }
+                } else if (entry instanceof PArchive) {
+                    result.add(new File(pMarker.getFolder(), ((PArchive) entry).getRelativePath()));
+                } else {
+                    throw new NotImplementedException("Type not implemented [" + entry.getClass() + "]");
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the pfiles of the marker which are written back into their archives. An archive which was taken over from the last run is
+     *         complete already.
+     */
+    public List<PFile> getPFilesToReplaceInArchives(PMarker pMarker) {
+        if (replacementManifest == null) {
+            return getPFilesFrom(pMarker);
+        }
+
+        List<PFile> result = new ArrayList<PFile>();
+        for (PFile pFile : getPFilesFrom(pMarker)) {
+            if (!pFile.isArchiveFile() || !replacementManifest.isReused(pFile.getRootArchiveFile())) {
+                result.add(pFile);
+            }
+        }
+        return result;
+    }
+
     public List<PProperty> getPPropertiesFrom(PMarker pMarker) {
         List<PProperty> result = new ArrayList<PProperty>();
 
@@ -150,11 +315,34 @@ public class EntityManager {
         return result;
     }
 
-    private PMarker unmarshal(File file) throws JAXBException {
-        Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
-        jaxbUnmarshaller.setSchema(schema);
+    /**
+     * Creates the filter of the pfile. A token filter shares the placeholder index of this run.
+     */
+    public PacifyFilter getPacifyFilter(PFile pFile) throws DefectException {
+        PacifyFilter pacifyFilter = Utils.getPacifyFilter(pFile);
+        if (pacifyFilter instanceof PacifyTokenFilter) {
+            ((PacifyTokenFilter) pacifyFilter).setPlaceholderIndex(getPlaceholderIndex());
+        }
+        return pacifyFilter;
+    }
+
+    public PlaceholderIndex getPlaceholderIndex() {
+        return placeholderIndex;
+    }
+
+    public DirectoryIndex getDirectoryIndex() {
+        return directoryIndex;
+    }
+
+    /**
+     * @return the manifest of the last run or null if every pfile is filtered.
+     */
+    public ReplacementManifest getReplacementManifest() {
+        return replacementManifest;
+    }
 
-        return (PMarker) jaxbUnmarshaller.unmarshal(file);
+    public void setReplacementManifest(ReplacementManifest replacementManifest) {
+        this.replacementManifest = replacementManifest;
     }
 
     public void postProcessPMarker(PMarker pMarker, LinkedHashSet<Defect> pMarkerDefects) {
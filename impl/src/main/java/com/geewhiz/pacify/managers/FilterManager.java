@@ -21,10 +21,27 @@
 package com.geewhiz.pacify.managers;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -32,11 +49,15 @@ import com.geewhiz.pacify.checks.impl.CheckForNotReplacedTokens;
 import com.geewhiz.pacify.defect.Defect;
 import com.geewhiz.pacify.defect.DefectException;
 import com.geewhiz.pacify.defect.PropertyNotDefinedInResolverDefect;
+import com.geewhiz.pacify.filter.OutputRecorder;
+import com.geewhiz.pacify.filter.OutputRecordingFilter;
 import com.geewhiz.pacify.filter.PacifyFilter;
+import com.geewhiz.pacify.filter.PlaceholderIndex;
+import com.geewhiz.pacify.filter.ReplacementManifest;
 import com.geewhiz.pacify.model.PFile;
 import com.geewhiz.pacify.model.PMarker;
 import com.geewhiz.pacify.model.PProperty;
-import com.geewhiz.pacify.utils.Utils;
+import com.geewhiz.pacify.utils.FileUtils;
 
 public class FilterManager {
 
@@ -45,59 +66,392 @@ public class FilterManager {
     private EntityManager          entityManager;
     private PropertyResolveManager propertyResolveManager;
 
+    private int                    threadCount = 1;
+
     public FilterManager(EntityManager entityManager, PropertyResolveManager propertyResolveManager) {
         this.entityManager = entityManager;
         this.propertyResolveManager = propertyResolveManager;
     }
 
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1 but was [" + threadCount + "]");
+        }
+        this.threadCount = threadCount;
+    }
+
     public LinkedHashSet<Defect> doFilter() {
+        if (getThreadCount() > 1) {
+            return doFilterParallel();
+        }
+
         LinkedHashSet<Defect> allDefects = new LinkedHashSet<Defect>();
 
         for (PMarker pMarker : entityManager.getPMarkers()) {
-            LinkedHashSet<Defect> pMarkerDefects = filterPMarker(pMarker);
+            List<ArchiveToFilter> archives = getArchivesToFilter(pMarker);
+            LinkedHashSet<Defect> pMarkerDefects = filterPMarker(pMarker, archives);
             allDefects.addAll(pMarkerDefects);
             entityManager.postProcessPMarker(pMarker, pMarkerDefects);
+            storeArchives(archives);
         }
 
         return allDefects;
     }
 
-    private LinkedHashSet<Defect> filterPMarker(PMarker pMarker) {
+    private LinkedHashSet<Defect> filterPMarker(PMarker pMarker, List<ArchiveToFilter> archives) {
         LinkedHashSet<Defect> defects = new LinkedHashSet<Defect>();
 
         logger.info("   Processing Marker File [{}]", pMarker.getFile().getAbsolutePath());
 
         for (PFile pFile : entityManager.getPFilesFrom(pMarker)) {
+            if (isFilteredWithItsArchive(pFile)) {
+                continue;
+            }
             defects.addAll(filterPFile(pFile));
         }
 
+        for (ArchiveToFilter archive : archives) {
+            resolvePropertyValues(archive);
+            defects.addAll(filterArchive(pMarker, archive));
+        }
+
         CheckForNotReplacedTokens checker = new CheckForNotReplacedTokens();
         defects.addAll(checker.checkForErrors(entityManager, pMarker));
 
         return defects;
     }
 
-    private LinkedHashSet<Defect> filterPFile(PFile pFile) {
+    /**
+     * The pfiles and the not replaced check are executed via a thread pool. The property resolution and the post processing is done in the calling
+     * thread, so the defects are collected in the same order as in the sequential mode.
+     */
+    private LinkedHashSet<Defect> doFilterParallel() {
+        LinkedHashSet<Defect> allDefects = new LinkedHashSet<Defect>();
+
+        List<PMarker> pMarkers = entityManager.getPMarkers();
+
+        ExecutorService executor = Executors.newFixedThreadPool(getThreadCount());
+        try {
+            List<List<Future<LinkedHashSet<Defect>>>> filterTasks = new ArrayList<List<Future<LinkedHashSet<Defect>>>>();
+            List<List<ArchiveToFilter>> archivesPerPMarker = new ArrayList<List<ArchiveToFilter>>();
+            // the same physical file could be referenced more than once, those have to be filtered one after another
+            Map<Path, Future<LinkedHashSet<Defect>>> lastTaskForFile = new HashMap<Path, Future<LinkedHashSet<Defect>>>();
+
+            for (PMarker pMarker : pMarkers) {
+                logger.info("   Processing Marker File [{}]", pMarker.getFile().getAbsolutePath());
+
+                List<ArchiveToFilter> archives = getArchivesToFilter(pMarker);
+                archivesPerPMarker.add(archives);
+
+                List<Future<LinkedHashSet<Defect>>> pMarkerTasks = new ArrayList<Future<LinkedHashSet<Defect>>>();
+                for (PFile pFile : entityManager.getPFilesFrom(pMarker)) {
+                    if (isFilteredWithItsArchive(pFile)) {
+                        continue;
+                    }
+                    // content in memory belongs to this pfile only
+                    if (pFile.isInMemory()) {
+                        pMarkerTasks.add(executor.submit(createFilterTask(pFile, null)));
+                        continue;
+                    }
+                    Path physicalFile = pFile.getFile().toPath().toAbsolutePath().normalize();
+                    Future<LinkedHashSet<Defect>> task = executor.submit(createFilterTask(pFile, lastTaskForFile.get(physicalFile)));
+                    lastTaskForFile.put(physicalFile, task);
+                    pMarkerTasks.add(task);
+                }
+                // the pfiles of an archive are in memory or extracted to a file of their own
+                for (ArchiveToFilter archive : archives) {
+                    pMarkerTasks.add(executor.submit(createArchiveFilterTask(pMarker, archive)));
+                }
+                filterTasks.add(pMarkerTasks);
+            }
+
+            // wait for all files, a file of a marker could be filtered by a task of another marker
+            List<LinkedHashSet<Defect>> pMarkerDefects = new ArrayList<LinkedHashSet<Defect>>();
+            for (List<Future<LinkedHashSet<Defect>>> pMarkerTasks : filterTasks) {
+                LinkedHashSet<Defect> defects = new LinkedHashSet<Defect>();
+                for (Future<LinkedHashSet<Defect>> task : pMarkerTasks) {
+                    defects.addAll(getResult(task));
+                }
+                pMarkerDefects.add(defects);
+            }
+
+            List<Future<LinkedHashSet<Defect>>> checkTasks = new ArrayList<Future<LinkedHashSet<Defect>>>();
+            for (PMarker pMarker : pMarkers) {
+                checkTasks.add(executor.submit(createNotReplacedTokensCheckTask(pMarker)));
+            }
+
+            // the post processor modifies archives and marker files, so it runs in the order of the marker files
+            for (int i = 0; i < pMarkers.size(); i++) {
+                LinkedHashSet<Defect> defects = pMarkerDefects.get(i);
+                defects.addAll(getResult(checkTasks.get(i)));
+
+                allDefects.addAll(defects);
+                entityManager.postProcessPMarker(pMarkers.get(i), defects);
+                storeArchives(archivesPerPMarker.get(i));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return allDefects;
+    }
+
+    private Callable<LinkedHashSet<Defect>> createFilterTask(final PFile pFile, final Future<LinkedHashSet<Defect>> predecessor) {
         logger.info("      Customize File [{}]", pFile.getPUri());
         logger.debug("          Filtering [{}] using encoding [{}] and filter [{}]", pFile.getPUri(), pFile.getEncoding(), pFile.getFilterClass());
 
-        File fileToFilter = pFile.getFile();
-        PacifyFilter pacifyFilter = getFilterForPFile(pFile);
+        // the property resolvers are not thread safe, so we resolve the values before we hand the file over to the pool.
+        final Map<String, String> propertyValues = new HashMap<String, String>();
+        final LinkedHashSet<Defect> defects = fillPropertyValuesFor(propertyValues, pFile);
+
+        return new Callable<LinkedHashSet<Defect>>() {
+
+            @Override
+            public LinkedHashSet<Defect> call() throws Exception {
+                if (predecessor != null) {
+                    waitFor(predecessor);
+                }
+                defects.addAll(filterPFile(pFile, propertyValues));
+                return defects;
+            }
+        };
+    }
+
+    private Callable<LinkedHashSet<Defect>> createArchiveFilterTask(final PMarker pMarker, final ArchiveToFilter archive) {
+        // the property resolvers are not thread safe, so we resolve the values before we hand the archive over to the pool.
+        resolvePropertyValues(archive);
+
+        return new Callable<LinkedHashSet<Defect>>() {
+
+            @Override
+            public LinkedHashSet<Defect> call() throws Exception {
+                return filterArchive(pMarker, archive);
+            }
+        };
+    }
+
+    private Callable<LinkedHashSet<Defect>> createNotReplacedTokensCheckTask(final PMarker pMarker) {
+        return new Callable<LinkedHashSet<Defect>>() {
+
+            @Override
+            public LinkedHashSet<Defect> call() throws Exception {
+                CheckForNotReplacedTokens checker = new CheckForNotReplacedTokens();
+                return checker.checkForErrors(entityManager, pMarker);
+            }
+        };
+    }
+
+    private void waitFor(Future<LinkedHashSet<Defect>> task) throws InterruptedException {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            // the failure is reported when the result of this task is fetched.
+        }
+    }
+
+    private LinkedHashSet<Defect> getResult(Future<LinkedHashSet<Defect>> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the filter threads.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private LinkedHashSet<Defect> filterPFile(PFile pFile) {
+        logger.info("      Customize File [{}]", pFile.getPUri());
+        logger.debug("          Filtering [{}] using encoding [{}] and filter [{}]", pFile.getPUri(), pFile.getEncoding(), pFile.getFilterClass());
 
         Map<String, String> propertyValues = new HashMap<String, String>();
         LinkedHashSet<Defect> defects = fillPropertyValuesFor(propertyValues, pFile);
 
-        int notResolvedPlaceholderCount = pFile.getPProperties().size() - defects.size();
+        defects.addAll(filterPFile(pFile, propertyValues));
+
+        return defects;
+    }
+
+    private LinkedHashSet<Defect> filterPFile(PFile pFile, Map<String, String> propertyValues) {
+        ReplacementManifest manifest = entityManager.getReplacementManifest();
+        if (manifest == null) {
+            return filterPFile(pFile, propertyValues, null);
+        }
+
+        ReplacementManifest.Template template = manifest.getTemplate(pFile.getPMarker(), pFile.getFile());
+        String valuesHash = ReplacementManifest.hashValues(pFile, propertyValues);
+
+        File output = manifest.getOutput(template, valuesHash);
+        if (output != null) {
+            takeOverOutput(pFile.getFile(), output);
+            entityManager.getPlaceholderIndex().fileWritten(pFile, new PlaceholderIndex.Entry(pFile, new HashMap<String, Integer>()));
+            logger.info("          Unchanged since the last run, took over its output.");
+            return new LinkedHashSet<Defect>();
+        }
+
+        OutputRecorder outputRecorder = manifest.createOutputRecorder();
+        LinkedHashSet<Defect> defects = filterPFile(pFile, propertyValues, outputRecorder);
+
+        if (defects.isEmpty() && !hasLeftOverPlaceholders(Collections.singletonList(pFile))) {
+            manifest.filtered(template, valuesHash, pFile.getFile(), outputRecorder.getHash());
+        }
+
+        return defects;
+    }
+
+    /**
+     * @return the pfiles of the marker which are within an archive, per top level archive. Without a manifest they are filtered one by one.
+     */
+    private List<ArchiveToFilter> getArchivesToFilter(PMarker pMarker) {
+        Map<File, ArchiveToFilter> result = new LinkedHashMap<File, ArchiveToFilter>();
+
+        for (PFile pFile : entityManager.getPFilesFrom(pMarker)) {
+            if (!isFilteredWithItsArchive(pFile)) {
+                continue;
+            }
+            File archiveFile = pFile.getRootArchiveFile();
+            if (!result.containsKey(archiveFile)) {
+                result.put(archiveFile, new ArchiveToFilter(archiveFile));
+            }
+            result.get(archiveFile).pFiles.add(pFile);
+        }
+
+        return new ArrayList<ArchiveToFilter>(result.values());
+    }
+
+    private boolean isFilteredWithItsArchive(PFile pFile) {
+        return entityManager.getReplacementManifest() != null && pFile.isArchiveFile();
+    }
+
+    private void resolvePropertyValues(ArchiveToFilter archive) {
+        Map<String, String> valuesHashes = new HashMap<String, String>();
+
+        for (PFile pFile : archive.pFiles) {
+            logger.info("      Customize File [{}]", pFile.getPUri());
+            logger.debug("          Filtering [{}] using encoding [{}] and filter [{}]", pFile.getPUri(), pFile.getEncoding(), pFile.getFilterClass());
+
+            Map<String, String> propertyValues = new HashMap<String, String>();
+            archive.defects.addAll(fillPropertyValuesFor(propertyValues, pFile));
+            archive.propertyValues.put(pFile, propertyValues);
+            valuesHashes.put(pFile.getPUri(), ReplacementManifest.hashValues(pFile, propertyValues));
+        }
+
+        archive.valuesHash = ReplacementManifest.hashValues(valuesHashes);
+    }
+
+    /**
+     * The pfiles of a top level archive are taken over from the last run together, so the archive doesn't have to be rewritten.
+     */
+    private LinkedHashSet<Defect> filterArchive(PMarker pMarker, ArchiveToFilter archive) {
+        ReplacementManifest manifest = entityManager.getReplacementManifest();
+        LinkedHashSet<Defect> defects = new LinkedHashSet<Defect>(archive.defects);
+
+        archive.template = manifest.getTemplate(pMarker, archive.file);
+
+        File output = defects.isEmpty() ? manifest.getOutput(archive.template, archive.valuesHash) : null;
+        if (output != null) {
+            takeOverOutput(archive.file, output);
+            for (PFile pFile : archive.pFiles) {
+                // the archive is complete already, so the extracted content isn't written back
+                pFile.deleteContent();
+            }
+            logger.info("          Archive [{}] unchanged since the last run, took over its output.", archive.file.getAbsolutePath());
+            return defects;
+        }
+
+        for (PFile pFile : archive.pFiles) {
+            defects.addAll(filterPFile(pFile, archive.propertyValues.get(pFile), null));
+        }
+
+        archive.isToStore = defects.isEmpty() && !hasLeftOverPlaceholders(archive.pFiles);
+        return defects;
+    }
+
+    /**
+     * Stores the archives, after the post processor wrote the pfiles back into them.
+     */
+    private void storeArchives(List<ArchiveToFilter> archives) {
+        for (ArchiveToFilter archive : archives) {
+            if (archive.isToStore) {
+                entityManager.getReplacementManifest().filtered(archive.template, archive.valuesHash, archive.file, null);
+            }
+        }
+    }
+
+    /**
+     * An output with left over placeholders fails the run, so it is not worth to be taken over.
+     */
+    private boolean hasLeftOverPlaceholders(List<PFile> pFiles) {
+        for (PFile pFile : pFiles) {
+            PlaceholderIndex.Entry leftOver = entityManager.getPlaceholderIndex().get(pFile);
+            if (leftOver != null && !leftOver.getPlaceholderNames().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        defects.addAll(pacifyFilter.filter(pFile, propertyValues));
+    private LinkedHashSet<Defect> filterPFile(PFile pFile, Map<String, String> propertyValues, OutputRecorder outputRecorder) {
+        PacifyFilter pacifyFilter = getFilterForPFile(pFile);
+        if (outputRecorder != null && pacifyFilter instanceof OutputRecordingFilter) {
+            ((OutputRecordingFilter) pacifyFilter).setOutputRecorder(outputRecorder);
+        }
 
-        fileToFilter.setLastModified(System.currentTimeMillis());
+        // the placeholders were indexed while validating, so we know how often they are replaced. Without the validation we don't know it.
+        Integer replacedPlaceholderCount = entityManager.getPlaceholderIndex().getOccurrences(pFile, propertyValues.keySet());
 
-        logger.info("          [{}] placeholders replaced.", notResolvedPlaceholderCount);
+        LinkedHashSet<Defect> defects = pacifyFilter.filter(pFile, propertyValues);
+
+        if (!pFile.isInMemory()) {
+            pFile.getFile().setLastModified(System.currentTimeMillis());
+        }
+        entityManager.getPlaceholderIndex().refresh(pFile);
+
+        logger.info("          [{}] placeholders replaced.", replacedPlaceholderCount != null ? replacedPlaceholderCount : "unknown");
 
         return defects;
     }
 
+    /**
+     * Replaces the template with the output of the last run. Only outputs without left over placeholders are kept, so there is nothing left
+     * in the file. The output is copied, so a later change of the target doesn't change the output.
+     */
+    private void takeOverOutput(File target, File output) {
+        File tmpFile = FileUtils.createSiblingFileWithSamePermissions(target);
+        try {
+            copy(output, tmpFile);
+            FileUtils.replaceFile(tmpFile, target);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't take over the output of the last run for [" + target.getAbsolutePath() + "].", e);
+        } finally {
+            // only there if something went wrong
+            org.apache.commons.io.FileUtils.deleteQuietly(tmpFile);
+        }
+        target.setLastModified(System.currentTimeMillis());
+    }
+
+    private void copy(File from, File to) throws IOException {
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = new FileInputStream(from);
+            // the existing file keeps its permissions
+            os = new FileOutputStream(to);
+            IOUtils.copy(is, os);
+            os.close();
+        } finally {
+            IOUtils.closeQuietly(is);
+            IOUtils.closeQuietly(os);
+        }
+    }
+
     private LinkedHashSet<Defect> fillPropertyValuesFor(Map<String, String> propertyValues, PFile pFile) {
         LinkedHashSet<Defect> defects = new LinkedHashSet<Defect>();
 
@@ -116,11 +470,28 @@ public class FilterManager {
 
     private PacifyFilter getFilterForPFile(PFile pFile) {
         try {
-            return Utils.getPacifyFilter(pFile);
+            return entityManager.getPacifyFilter(pFile);
         } catch (DefectException e) {
             // is checked before, so we should not get this exception here.
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * The pfiles of a top level archive, which are filtered or taken over from the last run together.
+     */
+    private static class ArchiveToFilter {
+
+        private File                            file;
+        private List<PFile>                     pFiles         = new ArrayList<PFile>();
+        private Map<PFile, Map<String, String>> propertyValues = new IdentityHashMap<PFile, Map<String, String>>();
+        private LinkedHashSet<Defect>           defects        = new LinkedHashSet<Defect>();
+        private String                          valuesHash;
+        private ReplacementManifest.Template    template;
+        private boolean                         isToStore;
+
+        private ArchiveToFilter(File file) {
+            this.file = file;
+        }
+    }
 }
@@ -20,13 +20,18 @@
 
 package com.geewhiz.pacify.managers;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
@@ -34,8 +39,10 @@ import org.apache.logging.log4j.Logger;
 import org.apache.tools.ant.types.FilterSet;
 
 import com.geewhiz.pacify.defect.Defect;
-import com.geewhiz.pacify.exceptions.CycleDetectRuntimeException;
+import com.geewhiz.pacify.defect.PropertyHasCycleDefect;
 import com.geewhiz.pacify.model.PProperty;
+import com.geewhiz.pacify.property.PropertyDependencyGraph;
+import com.geewhiz.pacify.property.PropertyDependencyGraph.Node;
 import com.geewhiz.pacify.resolver.PropertyResolver;
 import com.google.inject.Inject;
 
@@ -45,6 +52,11 @@ public class PropertyResolveManager {
 
     Set<PropertyResolver> propertyResolverList;
 
+    private PropertyDependencyGraph           dependencyGraph;
+
+    // the same property is used in many files, so we resolve it only once per begin and end token
+    private ConcurrentMap<String, Resolution> resolutions = new ConcurrentHashMap<String, Resolution>();
+
     @Inject
     public PropertyResolveManager(Set<PropertyResolver> propertyResolverList) {
         this.propertyResolverList = propertyResolverList;
@@ -79,8 +91,15 @@ public class PropertyResolveManager {
             return;
         }
 
-        String value = resolvePropertyWithCycleDetect(pProperty, new ArrayList<String>(), pProperty.getBeginToken(), pProperty.getEndToken());
+        Resolution resolution = getResolution(pProperty);
+        if (resolution.hasCycle()) {
+            // the cycle itself is reported by checkForCycles()
+            logger.debug("value for [{}] could not be resolved, it references a cycle.", pProperty.getName());
+            return;
+        }
+        addReferences(pProperty, resolution.getReferences());
 
+        String value = resolution.getValue();
         if (value == null) {
             logger.debug("value for [{}] could not be resolved.", pProperty.getName());
             return;
@@ -89,7 +108,7 @@ public class PropertyResolveManager {
         pProperty.setValue(value);
         pProperty.setIsResolved(true);
 
-        boolean isProtected = isProtectedProperty(pProperty.getName());
+        boolean isProtected = resolution.isProtected();
 
         if (!pProperty.isConvertBackslashToSlash()) {
             logger.debug("             Resolved property [{}] to value [{}]", pProperty.getName(), isProtected ? "**********" : pProperty.getValue());
@@ -101,70 +120,123 @@ public class PropertyResolveManager {
         }
     }
 
-    public boolean isProtectedProperty(String property) {
-        for (PropertyResolver propertyResolver : propertyResolverList) {
-            if (!propertyResolver.containsProperty(property)) {
-                continue;
-            }
+    private Resolution getResolution(PProperty pProperty) {
+        Resolution resolution = resolutions.get(getKey(pProperty.getName(), pProperty.getBeginToken(), pProperty.getEndToken()));
+        if (resolution != null) {
+            return resolution;
+        }
+        return resolve(pProperty.getName(), pProperty.getBeginToken(), pProperty.getEndToken());
+    }
 
-            boolean isProtected = propertyResolver.isProtectedProperty(property);
-            if (propertyResolver.propertyUsesToken(property)) {
-                for (String reference : propertyResolver.getReferencedProperties(property)) {
-                    isProtected |= isProtectedProperty(reference);
-                }
-            }
+    /**
+     * Resolves the property and the properties it references for the given file tokens. The references of a property are resolved before the
+     * property itself, so each value is calculated only once. Properties which are not referenced are not resolved.
+     */
+    private synchronized Resolution resolve(String property, String fileBeginToken, String fileEndToken) {
+        String key = getKey(property, fileBeginToken, fileEndToken);
 
-            return isProtected;
+        Resolution resolution = resolutions.get(key);
+        if (resolution != null) {
+            return resolution;
         }
 
-        return false;
-    }
+        Node node = getDependencyGraph().getNode(property);
+        if (node == null) {
+            resolution = new Resolution(null, false, false, Collections.<Reference> emptyList());
+            resolutions.put(key, resolution);
+            return resolution;
+        }
 
-    private String resolvePropertyWithCycleDetect(PProperty pProperty, List<String> propertyCycleDetector, String fileBeginToken, String fileEndToken) {
-        for (PropertyResolver propertyResolver : propertyResolverList) {
-            if (!propertyResolver.containsProperty(pProperty.getName())) {
+        // without recursion, as a chain of references could be longer than the stack
+        Deque<Node> toResolve = new ArrayDeque<Node>();
+        toResolve.push(node);
+        while (!toResolve.isEmpty()) {
+            Node next = toResolve.peek();
+            String nextKey = getKey(next.getName(), fileBeginToken, fileEndToken);
+            if (resolutions.containsKey(nextKey)) {
+                toResolve.pop();
                 continue;
             }
 
-            if (propertyResolver.propertyUsesToken(pProperty.getName())) {
-                return replaceTokens(propertyResolver, pProperty, propertyCycleDetector, fileBeginToken, fileEndToken);
+            // a property with a cycle isn't resolved, so its references are not needed
+            boolean referencesResolved = true;
+            if (!next.hasCycle()) {
+                for (Node successor : next.getSuccessors()) {
+                    if (!resolutions.containsKey(getKey(successor.getName(), fileBeginToken, fileEndToken))) {
+                        toResolve.push(successor);
+                        referencesResolved = false;
+                    }
+                }
             }
-            return propertyResolver.getPropertyValue(pProperty.getName());
-        }
 
-        return null;
+            if (referencesResolved) {
+                toResolve.pop();
+                resolutions.put(nextKey, createResolution(next, fileBeginToken, fileEndToken));
+            }
+        }
+        return resolutions.get(key);
     }
 
-    private String replaceTokens(PropertyResolver propertyResolver, PProperty pProperty, List<String> propertyCycleDetector, String fileBeginToken,
-            String fileEndToken) {
-        if (propertyCycleDetector.contains(pProperty.getName())) {
-            String message = StringUtils.join(propertyCycleDetector, "->") + "->" + pProperty.getName();
-            throw new CycleDetectRuntimeException(pProperty.getName(), message);
+    private Resolution createResolution(Node node, String fileBeginToken, String fileEndToken) {
+        if (node.hasCycle()) {
+            return new Resolution(null, false, true, Collections.<Reference> emptyList());
         }
 
-        propertyCycleDetector.add(pProperty.getName());
+        PropertyResolver propertyResolver = node.getPropertyResolver();
+        if (!node.usesToken()) {
+            return new Resolution(propertyResolver.getPropertyValue(node.getName()), node.isProtected(), false, Collections.<Reference> emptyList());
+        }
 
+        List<Reference> references = new ArrayList<Reference>();
         FilterSet filterSet = propertyResolver.createFilterSet();
-        for (String reference : propertyResolver.getReferencedProperties(pProperty.getName())) {
-            PProperty pReference = createReference(pProperty, reference);
-            pProperty.addAReference(pReference);
-
-            String value = resolvePropertyWithCycleDetect(pReference, propertyCycleDetector, fileBeginToken, fileEndToken);
-            if (value != null) {
-                pReference.setIsResolved(true);
-                filterSet.addFilter(reference, value);
+        for (String reference : node.getReferences()) {
+            // already there, if a resolver contains the reference
+            Resolution referenceResolution = resolutions.get(getKey(reference, fileBeginToken, fileEndToken));
+            List<Reference> referenceReferences = referenceResolution != null ? referenceResolution.getReferences()
+                    : Collections.<Reference> emptyList();
+
+            if (referenceResolution != null && referenceResolution.getValue() != null) {
+                filterSet.addFilter(reference, referenceResolution.getValue());
+                references.add(new Reference(reference, true, referenceReferences));
                 continue;
             }
-            pReference.setIsResolved(false);
+            references.add(new Reference(reference, false, referenceReferences));
 
             if (!fileBeginToken.equals(filterSet.getBeginToken()) || !fileEndToken.equals(filterSet.getEndToken())) {
-                value = fileBeginToken + reference + fileEndToken;
+                String value = fileBeginToken + reference + fileEndToken;
                 filterSet.addFilter(reference, value);
             }
         }
 
-        String valueWithToken = propertyResolver.getPropertyValue(pProperty.getName());
-        return filterSet.replaceTokens(valueWithToken);
+        String valueWithToken = propertyResolver.getPropertyValue(node.getName());
+        return new Resolution(filterSet.replaceTokens(valueWithToken), node.isProtected(), false, Collections.unmodifiableList(references));
+    }
+
+    private String getKey(String property, String fileBeginToken, String fileEndToken) {
+        return property + "\u0000" + fileBeginToken + "\u0000" + fileEndToken;
+    }
+
+    private synchronized PropertyDependencyGraph getDependencyGraph() {
+        if (dependencyGraph == null) {
+            dependencyGraph = new PropertyDependencyGraph(propertyResolverList);
+            logger.debug("Built the dependency graph of [{}] properties, [{}] cycles found.", dependencyGraph.getNodes().size(),
+                    dependencyGraph.getCycleCount());
+        }
+        return dependencyGraph;
+    }
+
+    private void addReferences(PProperty pProperty, List<Reference> references) {
+        for (Reference reference : references) {
+            PProperty pReference = createReference(pProperty, reference.getName());
+            pReference.setIsResolved(reference.isResolved());
+            addReferences(pReference, reference.getReferences());
+            pProperty.addAReference(pReference);
+        }
+    }
+
+    public boolean isProtectedProperty(String property) {
+        Node node = getDependencyGraph().getNode(property);
+        return node != null && node.isProtected();
     }
 
     private PProperty createReference(PProperty pProperty, String referenceName) {
@@ -190,4 +262,74 @@ public class PropertyResolveManager {
         return result;
     }
 
+    /**
+     * @return a defect for each cycle of the properties, so a cycle is reported once, no matter how many properties reference it.
+     */
+    public Collection<Defect> checkForCycles() {
+        Collection<Defect> result = new LinkedHashSet<Defect>();
+        for (List<String> cycle : getDependencyGraph().getCycles()) {
+            result.add(new PropertyHasCycleDefect(cycle.get(0), StringUtils.join(cycle, "->")));
+        }
+        return result;
+    }
+
+    /**
+     * The outcome of resolving a property, which is the same for all properties with the same name and the same begin and end token.
+     */
+    private static class Resolution {
+
+        private String          value;
+        private boolean         isProtected;
+        private boolean         hasCycle;
+        private List<Reference> references;
+
+        public Resolution(String value, boolean isProtected, boolean hasCycle, List<Reference> references) {
+            this.value = value;
+            this.isProtected = isProtected;
+            this.hasCycle = hasCycle;
+            this.references = references;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public boolean isProtected() {
+            return isProtected;
+        }
+
+        public boolean hasCycle() {
+            return hasCycle;
+        }
+
+        public List<Reference> getReferences() {
+            return references;
+        }
+    }
+
+    private static class Reference {
+
+        private String          name;
+        private boolean         isResolved;
+        private List<Reference> references;
+
+        public Reference(String name, boolean isResolved, List<Reference> references) {
+            this.name = name;
+            this.isResolved = isResolved;
+            this.references = references;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isResolved() {
+            return isResolved;
+        }
+
+        public List<Reference> getReferences() {
+            return references;
+        }
+    }
+
 };
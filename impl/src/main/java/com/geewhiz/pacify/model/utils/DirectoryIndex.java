@@ -0,0 +1,89 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.impl
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.model.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Holds the files below the marker folders of one run, so a folder is walked only once, regardless how many pfiles with a regular expression
+ * it contains.
+ */
+public class DirectoryIndex {
+
+    // folder -> relative paths of the files with unix file separators
+    private Map<File, List<String>> folders = new HashMap<File, List<String>>();
+
+    /**
+     * @return the files below the folder, whose relative path matches the regular expression.
+     */
+    public List<Path> getFiles(File folder, Pattern regEx) {
+        List<Path> result = new ArrayList<Path>();
+        for (String relativePath : getRelativePaths(folder)) {
+            if (regEx.matcher(relativePath).matches()) {
+                result.add(folder.toPath().resolve(relativePath));
+            }
+        }
+        return result;
+    }
+
+    private synchronized List<String> getRelativePaths(File folder) {
+        File key = folder.getAbsoluteFile();
+        if (!folders.containsKey(key)) {
+            folders.put(key, index(folder));
+        }
+        return folders.get(key);
+    }
+
+    private List<String> index(File folder) {
+        final Path folderPath = folder.toPath();
+        final List<String> result = new ArrayList<String>();
+
+        try {
+            Files.walkFileTree(folderPath, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    // we need to convert it, otherwise we have to mess around with backslash quoting and regex
+                    result.add(FilenameUtils.separatorsToUnix(folderPath.relativize(file).toString()));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return Collections.unmodifiableList(result);
+    }
+}
@@ -23,6 +23,7 @@ package com.geewhiz.pacify.model.utils;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.NotImplementedException;
 
@@ -49,29 +50,36 @@ public class PArchiveResolver {
         pArchive.setType(ArchiveUtils.getArchiveType(pArchive));
 
         if (pArchive.getFile() == null) {
-            File physicalFile = null;
-            if (pArchive.isArchiveFile()) {
-                physicalFile = ArchiveUtils.extractPArchive(pArchive);
-            } else {
-                physicalFile = new File(pArchive.getPMarker().getFolder(), pArchive.getRelativePath());
-            }
-            pArchive.setFile(physicalFile);
+            pArchive.setFile(new File(pArchive.getPMarker().getFolder(), pArchive.getRelativePath()));
         }
 
+        // extract everything of this archive and its child archives in one go, so the archive is read only once
+        Map<PFile, List<PFile>> extractedPFiles = ArchiveUtils.extractPFiles(pArchive);
+
+        addPFiles(pArchive, extractedPFiles, result);
+
+        return result;
+    }
+
+    private void addPFiles(PArchive pArchive, Map<PFile, List<PFile>> extractedPFiles, List<PFile> result) {
         for (Object entry : pArchive.getFilesAndArchives()) {
             if (entry instanceof PFile) {
                 PFile pFile = (PFile) entry;
-                result.addAll(ArchiveUtils.extractPFile(pFile));
+                // the pfile is not extracted, if its archive does not exist
+                if (extractedPFiles.containsKey(pFile)) {
+                    result.addAll(extractedPFiles.get(pFile));
+                } else {
+                    result.add(pFile);
+                }
             } else if (entry instanceof PArchive) {
-                PArchive pArchive = (PArchive) entry;
-                PArchiveResolver resolver = new PArchiveResolver(pArchive);
-                result.addAll(resolver.resolve());
+                PArchive childArchive = (PArchive) entry;
+                if (ArchiveUtils.isArchiveAndIsSupported(childArchive.getRelativePath())) {
+                    addPFiles(childArchive, extractedPFiles, result);
+                }
             } else {
                 throw new NotImplementedException("Type not implemented [" + entry.getClass() + "]");
             }
-
         }
-        return result;
     }
 
 }
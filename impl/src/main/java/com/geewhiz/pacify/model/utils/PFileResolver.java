@@ -21,21 +21,30 @@
 package com.geewhiz.pacify.model.utils;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import com.geewhiz.pacify.model.PFile;
 
 public class PFileResolver {
 
-    PFile pFile;
+    PFile          pFile;
+    DirectoryIndex directoryIndex;
 
     public PFileResolver(PFile pFile) {
+        this(pFile, new DirectoryIndex());
+    }
+
+    /**
+     * @param directoryIndex
+     *            the index of the run, so the marker folder is walked only once for all pfiles with a regular expression.
+     */
+    public PFileResolver(PFile pFile, DirectoryIndex directoryIndex) {
         this.pFile = pFile;
+        this.directoryIndex = directoryIndex;
     }
 
     public List<PFile> resolve() {
@@ -56,15 +65,7 @@ public class PFileResolver {
     private List<PFile> resolveRegEx() {
         List<PFile> result = new ArrayList<PFile>();
 
-        PFileFinder finder = new PFileFinder(pFile);
-
-        try {
-            Files.walkFileTree(pFile.getPMarker().getFolder().toPath(), finder);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        List<Path> pFiles = finder.getFiles();
+        List<Path> pFiles = directoryIndex.getFiles(pFile.getPMarker().getFolder(), Pattern.compile(pFile.getRelativePath()));
         for (Path file : pFiles) {
             PFile clone = ModelUtils.clonePFile(pFile, file);
             result.add(clone);
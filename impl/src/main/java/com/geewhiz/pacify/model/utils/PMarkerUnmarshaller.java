@@ -0,0 +1,99 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.impl
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.model.utils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.apache.commons.io.IOUtils;
+
+import com.geewhiz.pacify.model.ObjectFactory;
+import com.geewhiz.pacify.model.PMarker;
+
+/**
+ * Creating the JAXBContext and compiling the schema is expensive, so it is done only once per process and shared by all EntityManagers. Both
+ * are thread safe, an Unmarshaller isn't, so they are pooled.
+ */
+public class PMarkerUnmarshaller {
+
+    private static volatile JAXBContext jaxbContext;
+    private static volatile Schema      schema;
+
+    private static Queue<Unmarshaller>  unmarshallers = new ConcurrentLinkedQueue<Unmarshaller>();
+
+    public static PMarker unmarshal(File file) throws JAXBException {
+        Unmarshaller unmarshaller = unmarshallers.poll();
+        if (unmarshaller == null) {
+            unmarshaller = getJAXBContext().createUnmarshaller();
+            unmarshaller.setSchema(getSchema());
+        }
+
+        PMarker result = (PMarker) unmarshaller.unmarshal(file);
+
+        // only an unmarshaller which didn't fail goes back to the pool
+        unmarshallers.offer(unmarshaller);
+
+        return result;
+    }
+
+    public static JAXBContext getJAXBContext() {
+        if (jaxbContext == null) {
+            initialize();
+        }
+        return jaxbContext;
+    }
+
+    public static Schema getSchema() {
+        if (schema == null) {
+            initialize();
+        }
+        return schema;
+    }
+
+    private static synchronized void initialize() {
+        if (jaxbContext != null && schema != null) {
+            return;
+        }
+
+        InputStream xsd = null;
+        try {
+            xsd = PMarkerUnmarshaller.class.getClassLoader().getResourceAsStream("pacify.xsd");
+
+            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            schema = factory.newSchema(new StreamSource(xsd));
+            jaxbContext = JAXBContext.newInstance(ObjectFactory.class);
+        } catch (Exception e) {
+            throw new RuntimeException("Couldn't instanciate jaxb.", e);
+        } finally {
+            IOUtils.closeQuietly(xsd);
+        }
+    }
+}
@@ -23,27 +23,55 @@ package com.geewhiz.pacify.model.utils;
 
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.List;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Finds the marker files with one walk of the folder. Symbolic links are followed, a link which points to one of its parent folders is skipped.
+ * The marker files of a folder come before the ones of its sub folders.
+ */
 public class PacifyFilesFinder {
+	private static Logger logger = LogManager.getLogger(PacifyFilesFinder.class.getName());
+
 	private static CMFileFilter CMFileFilter = new CMFileFilter();
-	private static DirFilter dirFilter = new DirFilter();
 
 	private File folderToCheck;
+	private List<PathMatcher> excludes = new ArrayList<PathMatcher>();
 
 	public PacifyFilesFinder(File folderToCheck) {
-		this.folderToCheck = folderToCheck;
+		this(folderToCheck, Collections.<String> emptyList());
 	}
 
-	public List<File> getPacifyFiles() {
-		List<File> pMarkerFiles = new ArrayList<File>();
-		addPMarkerFilesFor(pMarkerFiles, folderToCheck);
-		return pMarkerFiles;
+	/**
+	 * @param excludes
+	 *            glob patterns, a file or folder is skipped if its name or its path relative to the folder matches one of them. E.g.
+	 *            node_modules or .git
+	 */
+	public PacifyFilesFinder(File folderToCheck, List<String> excludes) {
+		this.folderToCheck = folderToCheck;
+		for (String exclude : excludes) {
+			this.excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + exclude));
+		}
 	}
 
-	private void addPMarkerFilesFor(List<File> pMarkerFiles, File folderToCheck) {
+	public List<File> getPacifyFiles() {
 		if (folderToCheck == null) {
 			throw new IllegalArgumentException("Folder is null.... Aborting!");
 		}
@@ -52,11 +80,82 @@ public class PacifyFilesFinder {
 			        + "] does not exist... Aborting!");
 		}
 
-		pMarkerFiles.addAll(Arrays.asList(folderToCheck.listFiles(CMFileFilter)));
+		MarkerFileVisitor visitor = new MarkerFileVisitor();
+		try {
+			Files.walkFileTree(folderToCheck.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
+		} catch (IOException e) {
+			throw new RuntimeException("Couldn't search for marker files in [" + folderToCheck.getAbsolutePath() + "].", e);
+		}
+		return visitor.pMarkerFiles;
+	}
+
+	private boolean isExcluded(Path path) {
+		if (excludes.isEmpty()) {
+			return false;
+		}
 
-		File[] subFolders = folderToCheck.listFiles(dirFilter);
-		for (File subFolder : subFolders) {
-			addPMarkerFilesFor(pMarkerFiles, subFolder);
+		Path relativePath = folderToCheck.toPath().relativize(path);
+		for (PathMatcher exclude : excludes) {
+			if (exclude.matches(path.getFileName()) || exclude.matches(relativePath)) {
+				return true;
+			}
 		}
+		return false;
+	}
+
+	private class MarkerFileVisitor extends SimpleFileVisitor<Path> {
+
+		private List<File>    pMarkerFiles = new ArrayList<File>();
+
+		// the folders which are visited at the moment
+		private Deque<Folder> folders      = new ArrayDeque<Folder>();
+
+		@Override
+		public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+			if (!folders.isEmpty() && isExcluded(dir)) {
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+			folders.push(new Folder());
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+			File markerFile = file.toFile();
+			if (attrs.isRegularFile() && CMFileFilter.accept(markerFile.getParentFile(), markerFile.getName()) && !isExcluded(file)) {
+				folders.peek().markerFiles.add(markerFile);
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+			if (e instanceof FileSystemLoopException) {
+				logger.debug("Skipping [{}], it is a link to one of its parent folders.", file);
+				return FileVisitResult.CONTINUE;
+			}
+			throw e;
+		}
+
+		@Override
+		public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+			if (e != null) {
+				throw e;
+			}
+
+			Folder folder = folders.pop();
+			List<File> result = folders.isEmpty() ? pMarkerFiles : folders.peek().subFolderMarkerFiles;
+
+			// the marker files of a folder come before the ones of its sub folders
+			result.addAll(folder.markerFiles);
+			result.addAll(folder.subFolderMarkerFiles);
+
+			return FileVisitResult.CONTINUE;
+		}
+	}
+
+	private static class Folder {
+		private List<File> markerFiles          = new ArrayList<File>();
+		private List<File> subFolderMarkerFiles = new ArrayList<File>();
 	}
 }
@@ -19,16 +19,17 @@
  */
 package com.geewhiz.pacify.model.utils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -36,7 +37,6 @@ import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import com.geewhiz.pacify.defect.DefectRuntimeException;
 import com.geewhiz.pacify.filter.PacifyTokenFilter;
@@ -45,21 +45,24 @@ import com.geewhiz.pacify.model.PFile;
 import com.geewhiz.pacify.model.PMarker;
 import com.geewhiz.pacify.model.PProperty;
 
+/**
+ * Adjusts a pacify marker file. The elements are indexed once by the xpath the model objects return, so a lookup doesn't have to evaluate
+ * an xpath expression over the whole document.
+ */
 public class XMLUtils {
 
-    private static final String XPATH_ELEMENTS_WITH_NO_CHILDS = "//*[not(*) and not (self::Property)]";
+    private Logger                     logger = LogManager.getLogger();
 
-    private Logger              logger                        = LogManager.getLogger();
+    private PMarker                    pMarker;
+    private Document                   document;
 
-    private PMarker             pMarker;
-    private Document            document;
-    private XPath               xpathSearch;
+    // xpath -> elements in document order, the first one which is still part of the document is the one the xpath would find
+    private Map<String, List<Element>> index  = new HashMap<String, List<Element>>();
 
     public XMLUtils(PMarker pMarker) {
         this.pMarker = pMarker;
 
         DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        xpathSearch = XPathFactory.newInstance().newXPath();
 
         try {
             document = documentBuilderFactory.newDocumentBuilder().parse(pMarker.getFile());
@@ -68,30 +71,19 @@ public class XMLUtils {
             throw new DefectRuntimeException("Error while processing xml document [" + pMarker.getFile().getAbsolutePath() + "]");
         }
 
+        addToIndex(document.getDocumentElement(), null);
     }
 
     public void deleteIfExist(String xpath) {
-        try {
-            String parentXPath = getParentXPath(xpath);
-
-            Node parentNode = (Node) xpathSearch.evaluate(parentXPath, document, XPathConstants.NODE);
-            Node childNode = (Node) xpathSearch.evaluate(xpath, document, XPathConstants.NODE);
-
-            if (childNode != null) {
-                parentNode.removeChild(childNode);
-            }
-        } catch (Exception e) {
-            logger.debug(e);
-            throw new DefectRuntimeException("Could not find xPath [" + xpath + "] in file [" + pMarker.getFile() + "]");
+        Element element = find(xpath);
+        if (element != null) {
+            element.getParentNode().removeChild(element);
         }
     }
 
     public void addIfItDoesNotExist(PProperty pProperty) {
         try {
-            String xpath = pProperty.getXPath();
-
-            Node childNode = (Node) xpathSearch.evaluate(xpath, document, XPathConstants.NODE);
-            if (childNode != null) {
+            if (find(pProperty.getXPath()) != null) {
                 return;
             }
 
@@ -100,6 +92,7 @@ public class XMLUtils {
             Element newChild = createNode(pProperty);
 
             parentNode.appendChild(newChild);
+            addToIndex(pProperty.getXPath(), newChild);
         } catch (Exception e) {
             logger.debug(e);
             throw new DefectRuntimeException("Error while adding pproperty [" + pProperty.getXPath() + "]");
@@ -115,10 +108,10 @@ public class XMLUtils {
         return newChild;
     }
 
-    private Node createNode(PFile pFile) throws XPathExpressionException {
+    private Node createNode(PFile pFile) {
         Node parentNode = null;
         if (pFile.getPArchive() == null) {
-            parentNode = (Node) xpathSearch.evaluate(pFile.getPMarker().getXPath(), document, XPathConstants.NODE);
+            parentNode = find(pFile.getPMarker().getXPath());
         } else {
             parentNode = getNode(pFile.getPArchive());
         }
@@ -141,7 +134,9 @@ public class XMLUtils {
             newChild.setAttributeNode(createAttribute("EndToken", pFile.getEndToken()));
         }
 
-        return parentNode.appendChild(newChild);
+        parentNode.appendChild(newChild);
+        addToIndex(pFile.getXPath(), newChild);
+        return newChild;
     }
 
     private Attr createAttribute(String name, String value) {
@@ -150,24 +145,26 @@ public class XMLUtils {
         return nameAttr;
     }
 
-    private Node createNode(PArchive pArchive) throws XPathExpressionException {
+    private Node createNode(PArchive pArchive) {
         Node parentNode = null;
         if (pArchive.getParentArchive() == null) {
-            parentNode = (Node) xpathSearch.evaluate(pArchive.getPMarker().getXPath(), document, XPathConstants.NODE);
+            parentNode = find(pArchive.getPMarker().getXPath());
         } else {
             parentNode = getNode(pArchive.getParentArchive());
         }
 
-        Element newChild = document.createElement("PArchive");
+        Element newChild = document.createElement("Archive");
         newChild.setAttributeNode(createAttribute("RelativePath", pArchive.getRelativePath()));
         newChild.setAttributeNode(createAttribute("BeginToken", pArchive.getBeginToken()));
         newChild.setAttributeNode(createAttribute("EndToken", pArchive.getEndToken()));
 
-        return parentNode.appendChild(newChild);
+        parentNode.appendChild(newChild);
+        addToIndex(pArchive.getXPath(), newChild);
+        return newChild;
     }
 
-    private Node getNode(PArchive pArchive) throws XPathExpressionException {
-        Node node = (Node) xpathSearch.evaluate(pArchive.getXPath(), document, XPathConstants.NODE);
+    private Node getNode(PArchive pArchive) {
+        Node node = find(pArchive.getXPath());
         if (node != null) {
             return node;
         }
@@ -175,8 +172,8 @@ public class XMLUtils {
         return createNode(pArchive);
     }
 
-    private Node getNode(PFile pFile) throws XPathExpressionException {
-        Node node = (Node) xpathSearch.evaluate(pFile.getXPath(), document, XPathConstants.NODE);
+    private Node getNode(PFile pFile) {
+        Node node = find(pFile.getXPath());
         if (node != null) {
             return node;
         }
@@ -184,12 +181,37 @@ public class XMLUtils {
         return createNode(pFile);
     }
 
+    /**
+     * Removes all elements except properties which don't have a child element. The children are processed first, so an element whose children
+     * were all removed is removed as well.
+     */
     public void removeEntriesWithoutChilds() {
-        while (removeEntries()) {
-            // do until we don't find any more.
+        removeEntriesWithoutChilds(document);
+    }
+
+    private void removeEntriesWithoutChilds(Node node) {
+        Node child = node.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                removeEntriesWithoutChilds(child);
+                if (!"Property".equals(child.getNodeName()) && !hasChildElement(child)) {
+                    node.removeChild(child);
+                }
+            }
+            child = next;
         }
     }
 
+    private boolean hasChildElement(Node node) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void writeDocument() {
         try {
             Transformer transformer = TransformerFactory.newInstance().newTransformer();
@@ -201,7 +223,7 @@ public class XMLUtils {
             document.normalize();
             document.setXmlStandalone(true);
 
-            removeEmptyTextNodes();
+            removeEmptyTextNodes(document);
 
             DOMSource source = new DOMSource(document);
             StreamResult result = new StreamResult(pMarker.getFile());
@@ -213,40 +235,99 @@ public class XMLUtils {
         }
     }
 
-    private void removeEmptyTextNodes() {
-        try {
-            NodeList emptyTextNodes = (NodeList) xpathSearch.evaluate("//text()[normalize-space(.) = '']", document, XPathConstants.NODESET);
+    private void removeEmptyTextNodes(Node node) {
+        Node child = node.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.TEXT_NODE && isWhitespace(child.getNodeValue())) {
+                node.removeChild(child);
+            } else {
+                removeEmptyTextNodes(child);
+            }
+            child = next;
+        }
+    }
 
-            // Remove each empty text node from document.
-            for (int i = 0; i < emptyTextNodes.getLength(); i++) {
-                Node emptyTextNode = emptyTextNodes.item(i);
-                emptyTextNode.getParentNode().removeChild(emptyTextNode);
+    /**
+     * Same as normalize-space(.) = '' of xpath.
+     */
+    private boolean isWhitespace(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                return false;
             }
-        } catch (XPathExpressionException e) {
-            logger.debug(e);
-            throw new DefectRuntimeException("Error while removing empty lines from pacify marker file [" + pMarker.getFile().getAbsolutePath() + "]");
         }
+        return true;
     }
 
-    private String getParentXPath(String xpath) {
-        return xpath + "/parent::node()";
+    private Element find(String xpath) {
+        List<Element> elements = index.get(xpath);
+        if (elements == null) {
+            return null;
+        }
+        for (Element element : elements) {
+            if (isPartOfDocument(element)) {
+                return element;
+            }
+        }
+        return null;
     }
 
-    private boolean removeEntries() {
-        NodeList result;
-        try {
-            result = (NodeList) xpathSearch.evaluate(XPATH_ELEMENTS_WITH_NO_CHILDS, document, XPathConstants.NODESET);
-        } catch (XPathExpressionException e) {
-            logger.debug(e);
-            throw new DefectRuntimeException("Could not find elements which dont have a child.");
+    private boolean isPartOfDocument(Node node) {
+        for (Node current = node; current != null; current = current.getParentNode()) {
+            if (current == document) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addToIndex(Element element, String parentXPath) {
+        String xpath = getXPath(element, parentXPath);
+        if (xpath == null) {
+            return;
+        }
+
+        addToIndex(xpath, element);
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                addToIndex((Element) child, xpath);
+            }
+        }
+    }
+
+    private void addToIndex(String xpath, Element element) {
+        List<Element> elements = index.get(xpath);
+        if (elements == null) {
+            elements = new ArrayList<Element>(1);
+            index.put(xpath, elements);
+        }
+        elements.add(element);
+    }
+
+    /**
+     * @return the xpath of the element in the format of the model objects or null if the element is not part of the model.
+     */
+    private String getXPath(Element element, String parentXPath) {
+        String name = element.getTagName();
+        if (parentXPath == null) {
+            return "/" + name;
+        }
+
+        String attribute;
+        if ("File".equals(name) || "Archive".equals(name)) {
+            attribute = "RelativePath";
+        } else if ("Property".equals(name)) {
+            attribute = "Name";
+        } else {
+            return null;
         }
 
-        for (int i = 0; i < result.getLength(); i++) {
-            Node nodeToDelete = result.item(i);
-            Node parentNode = nodeToDelete.getParentNode();
-            parentNode.removeChild(nodeToDelete);
+        if (!element.hasAttribute(attribute)) {
+            return null;
         }
-        return result.getLength() > 0;
+        return parentXPath + "/" + name + "[@" + attribute + "='" + element.getAttribute(attribute) + "']";
     }
 
 }
@@ -46,7 +46,7 @@ public class AdjustPMarkerPostProcessor implements PostProcessor {
             adjustPMarkerFile(pMarker);
         }
 
-        ArchiveUtils.replaceFilesInArchives(entityManager.getPFilesFrom(pMarker));
+        ArchiveUtils.replaceFilesInArchives(entityManager.getPFilesToReplaceInArchives(pMarker));
     }
 
     private void markDefectedPProperties(PMarker pMarker, LinkedHashSet<Defect> defects) {
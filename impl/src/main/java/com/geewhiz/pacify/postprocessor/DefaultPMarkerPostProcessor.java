@@ -40,7 +40,7 @@ public class DefaultPMarkerPostProcessor implements PostProcessor {
             pMarker.getFile().delete();
         }
 
-        ArchiveUtils.replaceFilesInArchives(entityManager.getPFilesFrom(pMarker));
+        ArchiveUtils.replaceFilesInArchives(entityManager.getPFilesToReplaceInArchives(pMarker));
     }
 
 }
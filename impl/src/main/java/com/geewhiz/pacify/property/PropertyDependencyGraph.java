@@ -0,0 +1,386 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.impl
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.property;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.geewhiz.pacify.resolver.PropertyResolver;
+
+/**
+ * The references between the properties of all resolvers. The strongly connected components are searched with the algorithm of Tarjan, so each
+ * property knows up front if it is part of a cycle or references one. The nodes are ordered, that the references of a property come before
+ * the property itself, so the values can be resolved in one pass.
+ */
+public class PropertyDependencyGraph {
+
+    private Set<PropertyResolver> propertyResolverList;
+
+    private Map<String, Node>     nodes     = new HashMap<String, Node>();
+    private List<Node>            order     = new ArrayList<Node>();
+
+    private int                   index     = 0;
+    private int                   component = 0;
+
+    public PropertyDependencyGraph(Set<PropertyResolver> propertyResolverList) {
+        this.propertyResolverList = propertyResolverList;
+
+        Set<String> propertyKeys = new TreeSet<String>();
+        for (PropertyResolver propertyResolver : propertyResolverList) {
+            propertyKeys.addAll(propertyResolver.getPropertyKeys());
+        }
+        add(propertyKeys);
+    }
+
+    /**
+     * @return the node of the property or null if no resolver contains it.
+     */
+    public synchronized Node getNode(String property) {
+        if (!nodes.containsKey(property)) {
+            // a resolver which doesn't list all its properties, we add it afterwards
+            add(Collections.singleton(property));
+        }
+        return nodes.get(property);
+    }
+
+    /**
+     * @return all nodes, the references of a property come before the property.
+     */
+    public synchronized List<Node> getNodes() {
+        return new ArrayList<Node>(order);
+    }
+
+    public synchronized int getCycleCount() {
+        Set<Integer> components = new TreeSet<Integer>();
+        for (Node node : order) {
+            if (node.isPartOfCycle) {
+                components.add(node.component);
+            }
+        }
+        return components.size();
+    }
+
+    /**
+     * @return one cycle for each strongly connected component which is a cycle. It starts and ends with the property of the component whose
+     *         name comes first.
+     */
+    public synchronized List<List<String>> getCycles() {
+        Map<Integer, Node> firstOfComponent = new LinkedHashMap<Integer, Node>();
+        for (Node node : order) {
+            if (!node.isPartOfCycle) {
+                continue;
+            }
+            Node first = firstOfComponent.get(node.component);
+            if (first == null || node.name.compareTo(first.name) < 0) {
+                firstOfComponent.put(node.component, node);
+            }
+        }
+
+        List<List<String>> result = new ArrayList<List<String>>();
+        for (Node first : firstOfComponent.values()) {
+            result.add(getCycleWithinComponent(first));
+        }
+        return result;
+    }
+
+    /**
+     * @return the path from the property to the first property which is visited twice, or null if the property doesn't reference a cycle.
+     */
+    public synchronized List<String> getCycle(String property) {
+        Node node = getNode(property);
+        if (node == null || !node.hasCycle()) {
+            return null;
+        }
+
+        // each node with a cycle has a successor with a cycle, so we can't get lost.
+        Set<Node> path = new LinkedHashSet<Node>();
+        while (path.add(node)) {
+            for (Node successor : node.successors) {
+                if (successor.hasCycle()) {
+                    node = successor;
+                    break;
+                }
+            }
+        }
+
+        List<String> result = new ArrayList<String>();
+        for (Node onPath : path) {
+            result.add(onPath.getName());
+        }
+        result.add(node.getName());
+        return result;
+    }
+
+    /**
+     * The shortest way back to the node within its component. There is one, as each member of a component is reachable from every other
+     * member.
+     */
+    private List<String> getCycleWithinComponent(Node start) {
+        Map<Node, Node> predecessors = new HashMap<Node, Node>();
+        Deque<Node> toVisit = new ArrayDeque<Node>();
+        toVisit.add(start);
+
+        Node last = null;
+        while (last == null) {
+            Node node = toVisit.poll();
+            for (Node successor : node.successors) {
+                if (successor == start) {
+                    last = node;
+                    break;
+                }
+                if (successor.component == start.component && !predecessors.containsKey(successor)) {
+                    predecessors.put(successor, node);
+                    toVisit.add(successor);
+                }
+            }
+        }
+
+        LinkedList<String> result = new LinkedList<String>();
+        result.add(start.name);
+        for (Node node = last; node != start; node = predecessors.get(node)) {
+            result.addFirst(node.name);
+        }
+        result.addFirst(start.name);
+        return new ArrayList<String>(result);
+    }
+
+    private void add(Collection<String> properties) {
+        List<Node> added = new ArrayList<Node>();
+
+        Deque<String> toVisit = new ArrayDeque<String>(properties);
+        while (!toVisit.isEmpty()) {
+            String property = toVisit.pop();
+            if (nodes.containsKey(property)) {
+                continue;
+            }
+
+            PropertyResolver propertyResolver = getPropertyResolverFor(property);
+            if (propertyResolver == null) {
+                continue;
+            }
+
+            Node node = new Node(property, propertyResolver);
+            nodes.put(property, node);
+            added.add(node);
+            toVisit.addAll(node.references);
+        }
+
+        for (Node node : added) {
+            for (String reference : node.references) {
+                Node successor = nodes.get(reference);
+                if (successor != null) {
+                    node.successors.add(successor);
+                }
+            }
+        }
+
+        for (Node node : added) {
+            if (node.index == -1) {
+                strongConnect(node);
+            }
+        }
+    }
+
+    private PropertyResolver getPropertyResolverFor(String property) {
+        for (PropertyResolver propertyResolver : propertyResolverList) {
+            if (propertyResolver.containsProperty(property)) {
+                return propertyResolver;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tarjan without recursion, as a chain of references could be longer than the stack.
+     */
+    private void strongConnect(Node root) {
+        Deque<Node> stack = new ArrayDeque<Node>();
+        Deque<Frame> calls = new ArrayDeque<Frame>();
+
+        visit(root, stack, calls);
+        while (!calls.isEmpty()) {
+            Frame frame = calls.peek();
+            Node node = frame.node;
+
+            if (frame.next < node.successors.size()) {
+                Node successor = node.successors.get(frame.next++);
+                if (successor.index == -1) {
+                    visit(successor, stack, calls);
+                } else if (successor.onStack) {
+                    node.lowLink = Math.min(node.lowLink, successor.index);
+                }
+                continue;
+            }
+
+            calls.pop();
+            if (!calls.isEmpty()) {
+                Node caller = calls.peek().node;
+                caller.lowLink = Math.min(caller.lowLink, node.lowLink);
+            }
+
+            if (node.lowLink == node.index) {
+                List<Node> members = new ArrayList<Node>();
+                Node member;
+                do {
+                    member = stack.pop();
+                    member.onStack = false;
+                    members.add(member);
+                } while (member != node);
+                finishComponent(members);
+            }
+        }
+    }
+
+    private void visit(Node node, Deque<Node> stack, Deque<Frame> calls) {
+        node.index = index;
+        node.lowLink = index;
+        index++;
+
+        stack.push(node);
+        node.onStack = true;
+        calls.push(new Frame(node));
+    }
+
+    /**
+     * A component is finished after all components it references, so their state is already known.
+     */
+    private void finishComponent(List<Node> members) {
+        int id = component++;
+        for (Node member : members) {
+            member.component = id;
+        }
+
+        boolean isPartOfCycle = members.size() > 1 || members.get(0).successors.contains(members.get(0));
+        boolean hasCycle = isPartOfCycle;
+        boolean isProtected = false;
+
+        for (Node member : members) {
+            isProtected |= member.propertyResolver.isProtectedProperty(member.name);
+            for (Node successor : member.successors) {
+                if (successor.component != id) {
+                    hasCycle |= successor.hasCycle;
+                    isProtected |= successor.isProtected;
+                }
+            }
+        }
+
+        for (Node member : members) {
+            member.isPartOfCycle = isPartOfCycle;
+            member.hasCycle = hasCycle;
+            member.isProtected = isProtected;
+        }
+
+        order.addAll(members);
+    }
+
+    public static class Node {
+
+        private String           name;
+        private PropertyResolver propertyResolver;
+        private boolean          usesToken;
+        private List<String>     references;
+        private List<Node>       successors = new ArrayList<Node>();
+
+        private boolean          isPartOfCycle;
+        private boolean          hasCycle;
+        private boolean          isProtected;
+
+        private int              index      = -1;
+        private int              lowLink;
+        private boolean          onStack;
+        private int              component  = -1;
+
+        private Node(String name, PropertyResolver propertyResolver) {
+            this.name = name;
+            this.propertyResolver = propertyResolver;
+            this.usesToken = propertyResolver.propertyUsesToken(name);
+            if (usesToken) {
+                this.references = Collections.unmodifiableList(new ArrayList<String>(propertyResolver.getReferencedProperties(name)));
+            } else {
+                this.references = Collections.emptyList();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the first resolver which contains the property.
+         */
+        public PropertyResolver getPropertyResolver() {
+            return propertyResolver;
+        }
+
+        public boolean usesToken() {
+            return usesToken;
+        }
+
+        /**
+         * @return the referenced properties, also the ones which no resolver contains.
+         */
+        public List<String> getReferences() {
+            return references;
+        }
+
+        /**
+         * @return the nodes of the referenced properties which a resolver contains.
+         */
+        public List<Node> getSuccessors() {
+            return Collections.unmodifiableList(successors);
+        }
+
+        /**
+         * @return true if the property is part of a cycle or references a property which is.
+         */
+        public boolean hasCycle() {
+            return hasCycle;
+        }
+
+        /**
+         * @return true if the property or one of its references is protected.
+         */
+        public boolean isProtected() {
+            return isProtected;
+        }
+    }
+
+    private static class Frame {
+
+        private Node node;
+        private int  next = 0;
+
+        private Frame(Node node) {
+            this.node = node;
+        }
+    }
+}
@@ -23,10 +23,16 @@ package com.geewhiz.pacify;
 import static org.hamcrest.Matchers.greaterThan;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -35,6 +41,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.geewhiz.pacify.defect.Defect;
+import com.geewhiz.pacify.model.PFile;
+import com.geewhiz.pacify.model.PMarker;
+import com.geewhiz.pacify.test.TestUtil;
 import com.geewhiz.pacify.utils.LoggingUtils;
 
 public class Features extends TestBase {
@@ -63,4 +72,167 @@ public class Features extends TestBase {
                 greaterThan((new File(getTestResourceFolder(testFolder), "package/conf.txt")).lastModified()));
     }
 
+    @Test
+    public void ParallelFilterFeature() {
+        String testFolder = "2_Features/ParallelFilter";
+
+        Map<String, String> propertiesToUseWhileResolving = new HashMap<String, String>();
+        propertiesToUseWhileResolving.put("foobar1", "foobar1Value");
+        propertiesToUseWhileResolving.put("foobar2", "foobar2Value");
+
+        LinkedHashSet<Defect> defects = createPrepareValidateAndReplace(testFolder, createPropertyResolveManager(propertiesToUseWhileResolving), 4);
+
+        Assert.assertEquals("We shouldnt get any defects.", 0, defects.size());
+        checkIfResultIsAsExpected(testFolder);
+    }
+
+    @Test
+    public void ExcludeFeature() {
+        String testFolder = "2_Features/Exclude";
+
+        Map<String, String> propertiesToUseWhileResolving = new HashMap<String, String>();
+        propertiesToUseWhileResolving.put("foobar", "foobarValue");
+
+        // the marker files below the excluded folders reference a property which is not defined
+        LinkedHashSet<Defect> defects = createPrepareValidateAndReplace(testFolder, createPropertyResolveManager(propertiesToUseWhileResolving),
+                Arrays.asList("node_modules", "sub/skip"));
+
+        Assert.assertEquals("We shouldnt get any defects.", 0, defects.size());
+        checkIfResultIsAsExpected(testFolder);
+    }
+
+    @Test
+    public void RegExInSubFoldersFeature() {
+        String testFolder = "2_Features/RegExInSubFolders";
+
+        Map<String, String> propertiesToUseWhileResolving = new HashMap<String, String>();
+        propertiesToUseWhileResolving.put("foobar", "foobarValue");
+
+        LinkedHashSet<Defect> defects = createPrepareValidateAndReplace(testFolder, createPropertyResolveManager(propertiesToUseWhileResolving));
+
+        Assert.assertEquals("We shouldnt get any defects.", 0, defects.size());
+        checkIfResultIsAsExpected(testFolder);
+    }
+
+    @Test
+    public void CopyToFeature() throws IOException {
+        String testFolder = "2_Features/CopyTo";
+
+        File targetResourceFolder = getTargetResourceFolder(testFolder);
+        File packagePath = new File(targetResourceFolder, "package");
+        File copyPath = new File(targetResourceFolder, "copy");
+
+        TestUtil.removeOldTestResourcesAndCopyAgain(getTestResourceFolder(testFolder), targetResourceFolder);
+
+        Map<String, String> propertiesToUseWhileResolving = new HashMap<String, String>();
+        propertiesToUseWhileResolving.put("foobar1", "foobar1Value");
+
+        Replacer replacer = replaceIntoCopy(testFolder, "copy", null, true, propertiesToUseWhileResolving);
+
+        TestUtil.checkIfResultIsAsExpected(copyPath, new File(targetResourceFolder, "expectedResult"));
+        TestUtil.checkIfResultIsAsExpected(packagePath, new File(getTestResourceFolder(testFolder), "package"));
+
+        Assert.assertTrue("Not modified, so it is linked.",
+                Files.isSameFile(new File(packagePath, "readme.txt").toPath(), new File(copyPath, "readme.txt").toPath()));
+        Assert.assertFalse(Files.isSameFile(new File(packagePath, "conf.txt").toPath(), new File(copyPath, "conf.txt").toPath()));
+
+        // the marker files which were read for the copy are taken over
+        for (PMarker pMarker : replacer.getEntityManager().getPMarkers()) {
+            Assert.assertEquals(copyPath.getAbsoluteFile(), pMarker.getFolder().getAbsoluteFile());
+        }
+    }
+
+    @Test
+    public void CopyToWithoutLinksFeature() throws IOException {
+        String testFolder = "2_Features/CopyTo";
+
+        File targetResourceFolder = getTargetResourceFolder(testFolder);
+        File packagePath = new File(targetResourceFolder, "package");
+        File copyPath = new File(targetResourceFolder, "copy");
+
+        TestUtil.removeOldTestResourcesAndCopyAgain(getTestResourceFolder(testFolder), targetResourceFolder);
+
+        Map<String, String> propertiesToUseWhileResolving = new HashMap<String, String>();
+        propertiesToUseWhileResolving.put("foobar1", "foobar1Value");
+
+        replaceIntoCopy(testFolder, "copy", null, false, propertiesToUseWhileResolving);
+
+        TestUtil.checkIfResultIsAsExpected(copyPath, new File(targetResourceFolder, "expectedResult"));
+        TestUtil.checkIfResultIsAsExpected(packagePath, new File(getTestResourceFolder(testFolder), "package"));
+
+        Assert.assertFalse("Everything is copied.",
+                Files.isSameFile(new File(packagePath, "readme.txt").toPath(), new File(copyPath, "readme.txt").toPath()));
+    }
+
+    @Test
+    public void IncrementalFeature() throws IOException {
+        String testFolder = "2_Features/Incremental";
+
+        File targetResourceFolder = getTargetResourceFolder(testFolder);
+        File manifestFile = new File(targetResourceFolder, "manifest.properties");
+
+        TestUtil.removeOldTestResourcesAndCopyAgain(getTestResourceFolder(testFolder), targetResourceFolder);
+
+        Map<String, String> propertiesToUseWhileResolving = new HashMap<String, String>();
+        propertiesToUseWhileResolving.put("foobar1", "foobar1Value");
+        propertiesToUseWhileResolving.put("foobar2", "foobar2Value");
+
+        // every run starts from the templates of the package
+        Replacer firstRun = replaceIntoCopy(testFolder, "firstRun", manifestFile, propertiesToUseWhileResolving);
+        Assert.assertEquals("The first run filters all files.", 0, getReusedPFiles(firstRun).size());
+        TestUtil.checkIfResultIsAsExpected(new File(targetResourceFolder, "firstRun"), new File(targetResourceFolder, "expectedResult"));
+
+        Replacer secondRun = replaceIntoCopy(testFolder, "secondRun", manifestFile, propertiesToUseWhileResolving);
+        Assert.assertEquals("The second run skips all files.", getPFiles(secondRun), getReusedPFiles(secondRun));
+        TestUtil.checkIfResultIsAsExpected(new File(targetResourceFolder, "secondRun"), new File(targetResourceFolder, "expectedResult"));
+
+        propertiesToUseWhileResolving.put("foobar2", "changedValue");
+
+        Replacer thirdRun = replaceIntoCopy(testFolder, "thirdRun", manifestFile, propertiesToUseWhileResolving);
+        Assert.assertEquals("Only the file without foobar2 is skipped.", 1, getReusedPFiles(thirdRun).size());
+        Assert.assertEquals("first=foobar1Value\nsecond=changedValue\n",
+                FileUtils.readFileToString(new File(targetResourceFolder, "thirdRun/conf1.txt"), "UTF-8"));
+        Assert.assertEquals("name=foobar1Value\n", FileUtils.readFileToString(new File(targetResourceFolder, "thirdRun/sub/conf2.txt"), "UTF-8"));
+    }
+
+    private Replacer replaceIntoCopy(String testFolder, String copyDestination, File manifestFile,
+            Map<String, String> propertiesToUseWhileResolving) {
+        return replaceIntoCopy(testFolder, copyDestination, manifestFile, true, propertiesToUseWhileResolving);
+    }
+
+    private Replacer replaceIntoCopy(String testFolder, String copyDestination, File manifestFile, boolean linkUnmodifiedFiles,
+            Map<String, String> propertiesToUseWhileResolving) {
+        File targetResourceFolder = getTargetResourceFolder(testFolder);
+
+        Replacer replacer = createReplacer(createPropertyResolveManager(propertiesToUseWhileResolving), new File(targetResourceFolder, "package"));
+        replacer.setCopyDestination(new File(targetResourceFolder, copyDestination));
+        replacer.setLinkUnmodifiedFiles(linkUnmodifiedFiles);
+        replacer.setManifestFile(manifestFile);
+
+        LinkedHashSet<Defect> defects = replacer.getEntityManager().initialize();
+        defects.addAll(replacer.validate());
+        defects.addAll(replacer.doReplacement());
+
+        Assert.assertEquals("We shouldnt get any defects.", 0, defects.size());
+        return replacer;
+    }
+
+    private List<PFile> getPFiles(Replacer replacer) {
+        List<PFile> result = new ArrayList<PFile>();
+        for (PMarker pMarker : replacer.getEntityManager().getPMarkers()) {
+            result.addAll(replacer.getEntityManager().getPFilesFrom(pMarker));
+        }
+        return result;
+    }
+
+    private List<PFile> getReusedPFiles(Replacer replacer) {
+        List<PFile> result = new ArrayList<PFile>();
+        for (PFile pFile : getPFiles(replacer)) {
+            File target = pFile.isArchiveFile() ? pFile.getRootArchiveFile() : pFile.getFile();
+            if (replacer.getEntityManager().getReplacementManifest().isReused(target)) {
+                result.add(pFile);
+            }
+        }
+        return result;
+    }
 }
@@ -21,7 +21,9 @@
 package com.geewhiz.pacify;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
@@ -44,7 +46,21 @@ public abstract class TestBase {
         return executePacify(testFolder, propertyResolveManager, true);
     }
 
+    public LinkedHashSet<Defect> createPrepareValidateAndReplace(String testFolder, PropertyResolveManager propertyResolveManager, int threadCount) {
+        return executePacify(testFolder, propertyResolveManager, true, threadCount, Collections.<String> emptyList());
+    }
+
+    public LinkedHashSet<Defect> createPrepareValidateAndReplace(String testFolder, PropertyResolveManager propertyResolveManager,
+            List<String> excludes) {
+        return executePacify(testFolder, propertyResolveManager, true, 1, excludes);
+    }
+
     private LinkedHashSet<Defect> executePacify(String testFolder, PropertyResolveManager propertyResolveManager, boolean withValidate) {
+        return executePacify(testFolder, propertyResolveManager, withValidate, 1, Collections.<String> emptyList());
+    }
+
+    private LinkedHashSet<Defect> executePacify(String testFolder, PropertyResolveManager propertyResolveManager, boolean withValidate, int threadCount,
+            List<String> excludes) {
         File testResourceFolder = getTestResourceFolder(testFolder);
         File targetResourceFolder = getTargetResourceFolder(testFolder);
 
@@ -53,6 +69,8 @@ public abstract class TestBase {
         TestUtil.removeOldTestResourcesAndCopyAgain(testResourceFolder, targetResourceFolder);
 
         Replacer replacer = createReplacer(propertyResolveManager, packagePath);
+        replacer.setThreadCount(threadCount);
+        replacer.setExcludes(excludes);
 
         // execute initialize
         LinkedHashSet<Defect> defects = null;
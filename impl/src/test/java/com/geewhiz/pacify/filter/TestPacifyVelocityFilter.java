@@ -0,0 +1,93 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.impl
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.filter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.geewhiz.pacify.model.PFile;
+
+public class TestPacifyVelocityFilter {
+
+    private File folder;
+
+    @Before
+    public void before() throws IOException {
+        folder = File.createTempFile("velocityFilter", "");
+        folder.delete();
+        folder.mkdir();
+    }
+
+    @After
+    public void after() {
+        FileUtils.deleteQuietly(folder);
+    }
+
+    @Test
+    public void testCachesAreReusedAcrossFilesWithDifferentValues() throws IOException {
+        Map<String, String> devValues = new HashMap<String, String>();
+        devValues.put("env.name", "dev");
+        devValues.put("env.host", "devHost");
+        devValues.put("app", "devApp");
+
+        Map<String, String> prodValues = new HashMap<String, String>();
+        prodValues.put("env.name", "prod");
+        prodValues.put("env.host", "prodHost");
+        prodValues.put("app", "prodApp");
+
+        // all files are in the same folder, so they share one engine
+        Assert.assertEquals("dev devHost devApp", filter("first.txt", "${env.name} ${env.host} ${app}", devValues));
+        Assert.assertEquals("prod prodHost prodApp", filter("second.txt", "${env.name} ${env.host} ${app}", prodValues));
+
+        // an equal property set shares the tree of the first file
+        Assert.assertEquals("dev devHost devApp", filter("third.txt", "${env.name} ${env.host} ${app}", new HashMap<String, String>(devValues)));
+    }
+
+    @Test
+    public void testTemplateModificationsAreNotShared() throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("env.name", "dev");
+
+        Assert.assertEquals("changed", filter("modifying.txt", "#set($ignore = $env.put(\"name\", \"changed\"))${env.name}", values));
+        Assert.assertEquals("dev", filter("reading.txt", "${env.name}", values));
+    }
+
+    private String filter(String fileName, String content, Map<String, String> propertyValues) throws IOException {
+        File file = new File(folder, fileName);
+        FileUtils.writeStringToFile(file, content, "UTF-8");
+
+        PFile pFile = new PFile();
+        pFile.setFile(file);
+        pFile.setInternalBeginToken("${");
+        pFile.setInternalEndToken("}");
+
+        Assert.assertEquals(0, new PacifyVelocityFilter().filter(pFile, propertyValues).size());
+        return FileUtils.readFileToString(file, "UTF-8");
+    }
+}
@@ -0,0 +1,130 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.impl
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.filter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.geewhiz.pacify.model.PFile;
+
+public class TestPlaceholderIndex {
+
+    private File file;
+
+    @Before
+    public void before() throws IOException {
+        file = File.createTempFile("placeholderIndex", ".txt");
+        FileUtils.writeStringToFile(file, "%{foo} %{bar} %{foo}", "UTF-8");
+    }
+
+    @After
+    public void after() {
+        FileUtils.deleteQuietly(file);
+    }
+
+    @Test
+    public void testEntryIsDroppedIfFileIsModified() throws IOException {
+        PFile pFile = createPFile(file);
+
+        PlaceholderIndex index = new PlaceholderIndex();
+        index.put(pFile, new PlaceholderIndex.Entry(pFile, placeholders()));
+
+        Assert.assertNotNull(index.get(pFile));
+        Assert.assertEquals(Integer.valueOf(3), index.getOccurrences(pFile, Arrays.asList("foo", "bar")));
+        Assert.assertEquals(Integer.valueOf(0), index.getOccurrences(pFile, Arrays.asList("unknown")));
+
+        FileUtils.writeStringToFile(file, "%{foo}", "UTF-8");
+
+        Assert.assertNull("The file is shorter now.", index.get(pFile));
+        Assert.assertNull(index.getOccurrences(pFile, Arrays.asList("foo")));
+    }
+
+    @Test
+    public void testEntryOfContentInMemory() {
+        PFile pFile = new PFile();
+        pFile.setContent("%{foo} %{bar} %{foo}".getBytes());
+
+        PlaceholderIndex index = new PlaceholderIndex();
+        index.put(pFile, new PlaceholderIndex.Entry(pFile, placeholders()));
+        Assert.assertNotNull(index.get(pFile));
+
+        // same size, but new content
+        pFile.setContent("%{bar} %{foo} %{bar}".getBytes());
+        Assert.assertNull(index.get(pFile));
+    }
+
+    @Test
+    public void testRefreshTakesOverTheModificationTime() {
+        PFile pFile = createPFile(file);
+
+        PlaceholderIndex index = new PlaceholderIndex();
+        index.put(pFile, new PlaceholderIndex.Entry(pFile, placeholders()));
+
+        file.setLastModified(file.lastModified() - 60000);
+        Assert.assertNull(index.get(pFile));
+
+        index.put(pFile, new PlaceholderIndex.Entry(pFile, placeholders()));
+        file.setLastModified(file.lastModified() + 60000);
+        index.refresh(pFile);
+
+        Assert.assertNotNull(index.get(pFile));
+        Assert.assertEquals(2, index.get(pFile).getOccurrences("foo"));
+    }
+
+    @Test
+    public void testFileWrittenDropsOtherPFilesOfTheSameFile() {
+        PFile first = createPFile(file);
+        PFile second = createPFile(new File(file.getParentFile(), "." + File.separator + file.getName()));
+
+        PlaceholderIndex index = new PlaceholderIndex();
+        index.put(first, new PlaceholderIndex.Entry(first, placeholders()));
+        index.put(second, new PlaceholderIndex.Entry(second, placeholders()));
+
+        Map<String, Integer> leftOver = new LinkedHashMap<String, Integer>();
+        leftOver.put("bar", 1);
+        index.fileWritten(second, new PlaceholderIndex.Entry(second, leftOver));
+
+        Assert.assertNull("Only the pfile which wrote the file knows its content.", index.get(first));
+        Assert.assertEquals(Integer.valueOf(1), index.getOccurrences(second, Arrays.asList("foo", "bar")));
+    }
+
+    private PFile createPFile(File file) {
+        PFile pFile = new PFile();
+        pFile.setFile(file);
+        return pFile;
+    }
+
+    private Map<String, Integer> placeholders() {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        result.put("foo", 2);
+        result.put("bar", 1);
+        return result;
+    }
+}
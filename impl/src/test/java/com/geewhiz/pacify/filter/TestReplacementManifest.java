@@ -0,0 +1,237 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.impl
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.geewhiz.pacify.model.PMarker;
+
+public class TestReplacementManifest {
+
+    private File    folder;
+    private File    packageFolder;
+    private File    manifestFile;
+    private File    outputFolder;
+    private PMarker pMarker;
+
+    @Before
+    public void before() throws IOException {
+        folder = File.createTempFile("replacementManifest", "");
+        folder.delete();
+        folder.mkdir();
+
+        packageFolder = new File(folder, "package");
+        manifestFile = new File(folder, "manifest.properties");
+        outputFolder = new File(folder, "manifest.properties.outputs");
+
+        pMarker = new PMarker();
+        pMarker.setFile(new File(packageFolder, "test-CMFile.pacify"));
+    }
+
+    @After
+    public void after() {
+        FileUtils.deleteQuietly(folder);
+    }
+
+    @Test
+    public void testOutputIsTakenOverForTheSameTemplateAndValues() throws IOException {
+        File target = new File(packageFolder, "conf.txt");
+        long lastModified = writeTemplate(target, "template");
+
+        ReplacementManifest firstRun = new ReplacementManifest(manifestFile, packageFolder);
+        ReplacementManifest.Template template = firstRun.getTemplate(pMarker, target);
+        Assert.assertNull("There is no last run.", firstRun.getOutput(template, "values"));
+        filtered(firstRun, template, "values", target, "output");
+        firstRun.write();
+
+        writeTemplate(target, "template", lastModified);
+
+        ReplacementManifest secondRun = new ReplacementManifest(manifestFile, packageFolder);
+        Assert.assertNull(secondRun.getOutput(secondRun.getTemplate(pMarker, target), "otherValues"));
+        File other = new File(packageFolder, "other.txt");
+        writeTemplate(other, "template", lastModified);
+        Assert.assertNull(secondRun.getOutput(secondRun.getTemplate(pMarker, other), "values"));
+        Assert.assertFalse(secondRun.isReused(target));
+
+        File output = secondRun.getOutput(secondRun.getTemplate(pMarker, target), "values");
+        Assert.assertNotNull(output);
+        Assert.assertEquals("output", FileUtils.readFileToString(output, "UTF-8"));
+        Assert.assertTrue(secondRun.isReused(target));
+        secondRun.write();
+
+        // the entry is taken over, even though the target wasn't filtered
+        Assert.assertNotNull(new ReplacementManifest(manifestFile, packageFolder).getOutput(secondRun.getTemplate(pMarker, target), "values"));
+    }
+
+    @Test
+    public void testTemplateIsOnlyHashedIfItsSizeOrModificationTimeChanged() throws IOException {
+        File target = new File(packageFolder, "conf.txt");
+        long lastModified = writeTemplate(target, "template");
+
+        ReplacementManifest firstRun = new ReplacementManifest(manifestFile, packageFolder);
+        filtered(firstRun, firstRun.getTemplate(pMarker, target), "values", target, "output");
+        firstRun.write();
+
+        // the same size and modification time, so the content isn't compared
+        writeTemplate(target, "TEMPLATE", lastModified);
+        ReplacementManifest secondRun = new ReplacementManifest(manifestFile, packageFolder);
+        Assert.assertNotNull(secondRun.getOutput(secondRun.getTemplate(pMarker, target), "values"));
+
+        // the first run didn't hash the template, so a touched template is filtered again
+        writeTemplate(target, "template", lastModified + 60 * 1000);
+        ReplacementManifest.Template touched = secondRun.getTemplate(pMarker, target);
+        Assert.assertNull(secondRun.getOutput(touched, "values"));
+        filtered(secondRun, touched, "values", target, "output");
+        secondRun.write();
+
+        // now it is known
+        writeTemplate(target, "template", lastModified + 120 * 1000);
+        ReplacementManifest thirdRun = new ReplacementManifest(manifestFile, packageFolder);
+        Assert.assertNotNull("Touched, but the same content.", thirdRun.getOutput(thirdRun.getTemplate(pMarker, target), "values"));
+
+        writeTemplate(target, "modified", lastModified + 180 * 1000);
+        Assert.assertNull(thirdRun.getOutput(thirdRun.getTemplate(pMarker, target), "values"));
+    }
+
+    @Test
+    public void testOutputIsLinkedAndNotTakenOverIfModified() throws IOException {
+        File target = new File(packageFolder, "conf.txt");
+        long lastModified = writeTemplate(target, "template");
+
+        ReplacementManifest firstRun = new ReplacementManifest(manifestFile, packageFolder);
+        filtered(firstRun, firstRun.getTemplate(pMarker, target), "values", target, "output");
+        firstRun.write();
+
+        File output = outputFolder.listFiles()[0];
+        Assert.assertTrue("The output doesn't take up space twice.", Files.isSameFile(output.toPath(), target.toPath()));
+
+        // the target of the first run is modified in place, which modifies the output as well
+        FileUtils.writeStringToFile(target, "modifiedOutput", "UTF-8");
+        File copy = new File(folder, "copy/conf.txt");
+        writeTemplate(copy, "template", lastModified);
+
+        ReplacementManifest secondRun = new ReplacementManifest(manifestFile, new File(folder, "copy"));
+        PMarker copyPMarker = new PMarker();
+        copyPMarker.setFile(new File(folder, "copy/test-CMFile.pacify"));
+        Assert.assertNull(secondRun.getOutput(secondRun.getTemplate(copyPMarker, copy), "values"));
+    }
+
+    @Test
+    public void testOutputIsHashedWhileItIsWritten() throws IOException {
+        ReplacementManifest manifest = new ReplacementManifest(manifestFile, packageFolder);
+        OutputRecorder outputRecorder = manifest.createOutputRecorder();
+        Assert.assertFalse(outputRecorder.isRecorded());
+        Assert.assertNull(outputRecorder.getHash());
+
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        OutputStream os = outputRecorder.record(target);
+        os.write("output".getBytes("UTF-8"));
+        os.close();
+
+        Assert.assertTrue(outputRecorder.isRecorded());
+        Assert.assertEquals("The filter still writes to its target.", "output", target.toString("UTF-8"));
+
+        File sameContent = new File(folder, "sameContent.txt");
+        FileUtils.writeStringToFile(sameContent, "output", "UTF-8");
+        Assert.assertEquals(ReplacementManifest.hashFile(sameContent), outputRecorder.getHash());
+        Assert.assertFalse("Nothing is written besides the target.", outputFolder.exists());
+    }
+
+    @Test
+    public void testUnusedOutputsAreRemoved() throws IOException {
+        File target = new File(packageFolder, "conf.txt");
+        File notProcessed = new File(packageFolder, "notProcessed.txt");
+        long lastModified = writeTemplate(target, "template");
+        writeTemplate(notProcessed, "template", lastModified);
+
+        ReplacementManifest firstRun = new ReplacementManifest(manifestFile, packageFolder);
+        filtered(firstRun, firstRun.getTemplate(pMarker, target), "values", target, "firstOutput");
+        filtered(firstRun, firstRun.getTemplate(pMarker, notProcessed), "values", notProcessed, "notProcessedOutput");
+        firstRun.write();
+        Assert.assertEquals(2, outputFolder.list().length);
+
+        writeTemplate(target, "template", lastModified);
+        writeTemplate(notProcessed, "template", lastModified);
+
+        ReplacementManifest secondRun = new ReplacementManifest(manifestFile, packageFolder);
+        filtered(secondRun, secondRun.getTemplate(pMarker, target), "otherValues", target, "secondOutput");
+        secondRun.write();
+
+        Assert.assertEquals(1, outputFolder.list().length);
+        Assert.assertEquals("secondOutput", FileUtils.readFileToString(outputFolder.listFiles()[0], "UTF-8"));
+
+        writeTemplate(target, "template", lastModified);
+
+        ReplacementManifest thirdRun = new ReplacementManifest(manifestFile, packageFolder);
+        Assert.assertNull(thirdRun.getOutput(thirdRun.getTemplate(pMarker, notProcessed), "values"));
+        Assert.assertNotNull(thirdRun.getOutput(thirdRun.getTemplate(pMarker, target), "otherValues"));
+    }
+
+    @Test
+    public void testManifestOfAnotherVersionIsIgnored() throws IOException {
+        File target = new File(packageFolder, "conf.txt");
+        long lastModified = writeTemplate(target, "template");
+
+        ReplacementManifest firstRun = new ReplacementManifest(manifestFile, packageFolder);
+        filtered(firstRun, firstRun.getTemplate(pMarker, target), "values", target, "output");
+        firstRun.write();
+
+        String content = FileUtils.readFileToString(manifestFile, "ISO-8859-1");
+        FileUtils.writeStringToFile(manifestFile, content.replace("pacify.manifest.version=", "pacify.manifest.version=0"), "ISO-8859-1");
+
+        writeTemplate(target, "template", lastModified);
+        ReplacementManifest secondRun = new ReplacementManifest(manifestFile, packageFolder);
+        Assert.assertNull(secondRun.getOutput(secondRun.getTemplate(pMarker, target), "values"));
+    }
+
+    /**
+     * Writes the output into the target, like a filter does.
+     */
+    private void filtered(ReplacementManifest manifest, ReplacementManifest.Template template, String valuesHash, File target, String output)
+            throws IOException {
+        File tmp = new File(target.getAbsolutePath() + ".tmp");
+        FileUtils.writeStringToFile(tmp, output, "UTF-8");
+        Files.move(tmp.toPath(), target.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+        manifest.filtered(template, valuesHash, target, null);
+    }
+
+    private long writeTemplate(File file, String content) throws IOException {
+        return writeTemplate(file, content, System.currentTimeMillis() / 1000 * 1000 - 24 * 60 * 60 * 1000);
+    }
+
+    private long writeTemplate(File file, String content, long lastModified) throws IOException {
+        file.delete();
+        FileUtils.writeStringToFile(file, content, "UTF-8");
+        file.setLastModified(lastModified);
+        return lastModified;
+    }
+}
@@ -0,0 +1,186 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.impl
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.property;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.geewhiz.pacify.property.PropertyDependencyGraph.Node;
+import com.geewhiz.pacify.property.resolver.HashMapPropertyResolver;
+import com.geewhiz.pacify.resolver.PropertyResolver;
+
+public class TestPropertyDependencyGraph {
+
+    @Test
+    public void testSelfReference() {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put("self", "%{self}");
+        properties.put("other", "otherValue");
+
+        PropertyDependencyGraph graph = createGraph(properties);
+
+        Assert.assertTrue(graph.getNode("self").hasCycle());
+        Assert.assertFalse(graph.getNode("other").hasCycle());
+        Assert.assertEquals(Arrays.asList("self", "self"), graph.getCycle("self"));
+        Assert.assertNull(graph.getCycle("other"));
+        Assert.assertEquals(1, graph.getCycleCount());
+    }
+
+    @Test
+    public void testTwoCycle() {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put("a", "a%{b}");
+        properties.put("b", "b%{a}");
+
+        PropertyDependencyGraph graph = createGraph(properties);
+
+        Assert.assertTrue(graph.getNode("a").hasCycle());
+        Assert.assertTrue(graph.getNode("b").hasCycle());
+        Assert.assertEquals(Arrays.asList("a", "b", "a"), graph.getCycle("a"));
+        Assert.assertEquals(Arrays.asList("b", "a", "b"), graph.getCycle("b"));
+        Assert.assertEquals(1, graph.getCycleCount());
+    }
+
+    @Test
+    public void testDiamondIsNoCycle() {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put("top", "%{left}-%{right}");
+        properties.put("left", "left%{bottom}");
+        properties.put("right", "right%{bottom}");
+        properties.put("bottom", "bottomValue");
+
+        PropertyDependencyGraph graph = createGraph(properties);
+
+        for (String property : properties.keySet()) {
+            Assert.assertFalse(property, graph.getNode(property).hasCycle());
+            Assert.assertNull(property, graph.getCycle(property));
+        }
+        Assert.assertEquals(0, graph.getCycleCount());
+
+        // the references come before the property
+        List<String> order = getNames(graph.getNodes());
+        Assert.assertTrue(order.indexOf("bottom") < order.indexOf("left"));
+        Assert.assertTrue(order.indexOf("bottom") < order.indexOf("right"));
+        Assert.assertTrue(order.indexOf("left") < order.indexOf("top"));
+        Assert.assertTrue(order.indexOf("right") < order.indexOf("top"));
+    }
+
+    @Test
+    public void testPropertyReferencingACycle() {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put("user", "%{notDefined}%{a}");
+        properties.put("a", "%{b}");
+        properties.put("b", "%{a}");
+
+        PropertyDependencyGraph graph = createGraph(properties);
+
+        Assert.assertTrue("It references a cycle.", graph.getNode("user").hasCycle());
+        Assert.assertEquals(Arrays.asList("user", "a", "b", "a"), graph.getCycle("user"));
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("a", "notDefined")), new TreeSet<String>(graph.getNode("user").getReferences()));
+        Assert.assertEquals("The user of a cycle is no cycle of its own.", 1, graph.getCycleCount());
+    }
+
+    @Test
+    public void testEachCycleIsListedOnce() {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put("user", "%{c}%{x}");
+        properties.put("c", "%{a}");
+        properties.put("a", "%{b}");
+        properties.put("b", "%{c}%{a}");
+        properties.put("x", "%{y}");
+        properties.put("y", "%{x}");
+        properties.put("self", "%{self}");
+        properties.put("other", "otherValue");
+
+        PropertyDependencyGraph graph = createGraph(properties);
+
+        Set<List<String>> cycles = new HashSet<List<String>>(graph.getCycles());
+        Assert.assertEquals(graph.getCycleCount(), graph.getCycles().size());
+        Assert.assertEquals(3, cycles.size());
+        Assert.assertTrue("The shortest cycle of the first property.", cycles.contains(Arrays.asList("a", "b", "a")));
+        Assert.assertTrue(cycles.contains(Arrays.asList("x", "y", "x")));
+        Assert.assertTrue(cycles.contains(Arrays.asList("self", "self")));
+    }
+
+    @Test
+    public void testLongChain() {
+        int length = 100000;
+
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        for (int i = 0; i < length; i++) {
+            properties.put("p" + i, "%{p" + (i + 1) + "}");
+        }
+        properties.put("p" + length, "end");
+
+        PropertyDependencyGraph graph = createGraph(properties);
+
+        Assert.assertFalse(graph.getNode("p0").hasCycle());
+        Assert.assertEquals(0, graph.getCycleCount());
+
+        List<Node> order = graph.getNodes();
+        Assert.assertEquals(length + 1, order.size());
+        Assert.assertEquals("p" + length, order.get(0).getName());
+        Assert.assertEquals("p0", order.get(length).getName());
+    }
+
+    @Test
+    public void testLongChainEndingInACycle() {
+        int length = 100000;
+
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        for (int i = 0; i < length; i++) {
+            properties.put("p" + i, "%{p" + (i + 1) + "}");
+        }
+        properties.put("p" + length, "%{p" + (length - 1) + "}");
+
+        PropertyDependencyGraph graph = createGraph(properties);
+
+        Assert.assertTrue(graph.getNode("p0").hasCycle());
+        Assert.assertEquals(1, graph.getCycleCount());
+
+        List<String> cycle = graph.getCycle("p0");
+        Assert.assertEquals(length + 2, cycle.size());
+        Assert.assertEquals("p" + (length - 1), cycle.get(cycle.size() - 1));
+    }
+
+    private PropertyDependencyGraph createGraph(Map<String, String> properties) {
+        Set<PropertyResolver> propertyResolverList = new TreeSet<PropertyResolver>();
+        propertyResolverList.add(new HashMapPropertyResolver(properties));
+        return new PropertyDependencyGraph(propertyResolverList);
+    }
+
+    private List<String> getNames(List<Node> nodes) {
+        List<String> result = new ArrayList<String>();
+        for (Node node : nodes) {
+            result.add(node.getName());
+        }
+        return result;
+    }
+}
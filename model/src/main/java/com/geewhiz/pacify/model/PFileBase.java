@@ -20,10 +20,17 @@
 
 package com.geewhiz.pacify.model;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.bind.Unmarshaller;
 
+import org.apache.commons.io.FileUtils;
+
 import org.jvnet.jaxb2_commons.lang.CopyStrategy2;
 import org.jvnet.jaxb2_commons.lang.CopyTo2;
 import org.jvnet.jaxb2_commons.lang.EqualsStrategy2;
@@ -35,6 +42,8 @@ import com.geewhiz.pacify.defect.DefectRuntimeException;
 
 public abstract class PFileBase implements Cloneable, CopyTo2 {
 
+    private static final AtomicLong CONTENT_VERSION = new AtomicLong();
+
     private PMarker  pMarker;
 
     private PArchive pArchive;
@@ -46,6 +55,14 @@ public abstract class PFileBase implements Cloneable, CopyTo2 {
      */
     private File     file;
 
+    /**
+     * The content of an archive entry which is small enough to be kept in memory. A file is only created if somebody asks for it via
+     * getFile().
+     */
+    private byte[]   content;
+
+    private long     contentVersion;
+
     public PMarker getPMarker() {
         if (getPArchive() != null)
             return pArchive.getPMarker();
@@ -69,7 +86,68 @@ public abstract class PFileBase implements Cloneable, CopyTo2 {
     }
 
     public Boolean fileExists() {
-        return file != null && file.exists();
+        return content != null || (file != null && file.exists());
+    }
+
+    /**
+     * @return true if the pfile is resolved, either to a file or to content in memory.
+     */
+    public Boolean hasContent() {
+        return content != null || file != null;
+    }
+
+    public Boolean isInMemory() {
+        return content != null;
+    }
+
+    /**
+     * @return the content, if it is held in memory otherwise null.
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * Keeps the content in memory, a file which was set before is not used anymore.
+     */
+    public void setContent(byte[] content) {
+        this.content = content;
+        this.contentVersion = CONTENT_VERSION.incrementAndGet();
+        this.file = null;
+    }
+
+    public InputStream openInputStream() throws IOException {
+        if (content != null) {
+            return new ByteArrayInputStream(content);
+        }
+        return new FileInputStream(file);
+    }
+
+    public long getSize() {
+        if (content != null) {
+            return content.length;
+        }
+        return file.length();
+    }
+
+    /**
+     * @return the modification time of the file. If the content is held in memory, it is a number which changes with every new content.
+     */
+    public long getLastModified() {
+        if (content != null) {
+            return contentVersion;
+        }
+        return file.lastModified();
+    }
+
+    /**
+     * Removes the temporary content of an archive entry, the file or the content in memory.
+     */
+    public void deleteContent() {
+        if (file != null) {
+            file.delete();
+        }
+        content = null;
     }
 
     public String getPUri() {
@@ -99,11 +177,51 @@ public abstract class PFileBase implements Cloneable, CopyTo2 {
     }
 
     public File getFile() {
+        if (content != null) {
+            writeContentToFile();
+        }
         return file;
     }
 
     public void setFile(File file) {
         this.file = file;
+        this.content = null;
+    }
+
+    /**
+     * The file is created next to the archive, so it is on the same file system as the archive which is written later.
+     */
+    private void writeContentToFile() {
+        File archive = getRootArchiveFile();
+        File folder = archive != null ? archive.getAbsoluteFile().getParentFile() : null;
+
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("." + new File(getRelativePath()).getName() + "_", ".tmp", folder);
+            FileUtils.writeByteArrayToFile(tmp, content);
+            setFile(tmp);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't write [" + getPUri() + "] to a file.", e);
+        } finally {
+            // only if something went wrong
+            if (tmp != null && file != tmp) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the file of the top level archive, null if this pfile isn't within an archive.
+     */
+    public File getRootArchiveFile() {
+        PArchive result = getPArchive();
+        if (result == null) {
+            return null;
+        }
+        while (result.isArchiveFile()) {
+            result = result.getParentArchive();
+        }
+        return result.getFile();
     }
 
     public String getXPath() {
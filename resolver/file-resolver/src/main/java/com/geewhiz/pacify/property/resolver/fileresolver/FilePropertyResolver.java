@@ -22,21 +22,28 @@ package com.geewhiz.pacify.property.resolver.fileresolver;
 
 
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.IOUtils;
+
 import com.geewhiz.pacify.defect.Defect;
 import com.geewhiz.pacify.defect.PropertyDuplicateDefinedInPropertyFileDefect;
 import com.geewhiz.pacify.property.resolver.BasePropertyResolver;
-import com.geewhiz.pacify.property.resolver.fileresolver.exceptions.WrongPropertyLineRuntimeException;
 import com.geewhiz.pacify.utils.FileUtils;
 
 public class FilePropertyResolver extends BasePropertyResolver {
@@ -51,6 +58,7 @@ public class FilePropertyResolver extends BasePropertyResolver {
     public static final Pattern        PROPERTY_PATTERN    = Pattern.compile(SEARCH_PATTERN);
 
     private boolean                    initialized         = false;
+    private long                       lastModified;
 
     private URL                        propertyFileURL;
     private List<FilePropertyResolver> parents             = new ArrayList<FilePropertyResolver>();
@@ -62,6 +70,10 @@ public class FilePropertyResolver extends BasePropertyResolver {
 
     private Set<String>                duplicateProperties = new TreeSet<String>();
 
+    // the properties of this file and all imported files, computed once, so a lookup doesn't have to walk through the imports
+    private volatile Map<String, EffectiveProperty> effectiveProperties;
+    private volatile Set<String>       propertyKeys;
+
     public FilePropertyResolver(URL propertyFileURL) {
         this.propertyFileURL = propertyFileURL;
     }
@@ -73,46 +85,27 @@ public class FilePropertyResolver extends BasePropertyResolver {
 
     @Override
     public boolean containsProperty(String key) {
-        if (getLocalProperties().containsKey(key)) {
-            return true;
-        }
-        for (int i = getParents().size() - 1; i >= 0; i--) {
-            FilePropertyResolver parent = getParents().get(i);
-            if (parent.containsProperty(key)) {
-                return true;
-            }
-        }
-
-        return false;
+        return getEffectiveProperties().containsKey(key);
     }
 
     @Override
     public boolean isProtectedProperty(String key) {
-        if (getProtectedProperties().contains(key)) {
-            return true;
-        }
-        for (int i = getParents().size() - 1; i >= 0; i--) {
-            FilePropertyResolver parent = getParents().get(i);
-            if (parent.isProtectedProperty(key)) {
-                return true;
-            }
-        }
-
-        return false;
+        EffectiveProperty effectiveProperty = getEffectiveProperties().get(key);
+        return effectiveProperty != null && effectiveProperty.isProtected();
     }
 
     @Override
     public String getPropertyValue(String key) {
-        if (getLocalProperties().containsKey(key)) {
-            return getLocalProperties().get(key);
-        }
-        for (int i = getParents().size() - 1; i >= 0; i--) {
-            FilePropertyResolver parent = getParents().get(i);
-            if (parent.containsProperty(key)) {
-                return parent.getPropertyValue(key);
-            }
-        }
-        return null;
+        EffectiveProperty effectiveProperty = getEffectiveProperties().get(key);
+        return effectiveProperty != null ? effectiveProperty.getValue() : null;
+    }
+
+    /**
+     * @return the url of the file which defines the value of the property or null if it isn't defined.
+     */
+    public URL getPropertyOrigin(String key) {
+        EffectiveProperty effectiveProperty = getEffectiveProperties().get(key);
+        return effectiveProperty != null ? effectiveProperty.getOrigin() : null;
     }
 
     /**
@@ -130,16 +123,46 @@ public class FilePropertyResolver extends BasePropertyResolver {
 
     @Override
     public Set<String> getPropertyKeys() {
+        if (propertyKeys == null) {
+            propertyKeys = Collections.unmodifiableSet(new TreeSet<String>(getEffectiveProperties().keySet()));
+        }
+        return propertyKeys;
+    }
+
+    /**
+     * @return the properties of this file merged with the ones of the imported files. A local property wins over an imported one, a later
+     *         import over an earlier one. A property is protected, if it is marked as protected in any of the files.
+     */
+    public Map<String, EffectiveProperty> getEffectiveProperties() {
+        if (effectiveProperties == null) {
+            createEffectiveProperties();
+        }
+        return effectiveProperties;
+    }
+
+    private synchronized void createEffectiveProperties() {
+        if (effectiveProperties != null) {
+            return;
+        }
+
         initialize();
 
-        Set<String> result = new TreeSet<String>();
+        Map<String, EffectiveProperty> result = new HashMap<String, EffectiveProperty>();
+        for (FilePropertyResolver parent : getParents()) {
+            for (Map.Entry<String, EffectiveProperty> entry : parent.getEffectiveProperties().entrySet()) {
+                EffectiveProperty overridden = result.get(entry.getKey());
+                result.put(entry.getKey(), entry.getValue().protect(overridden != null && overridden.isProtected()));
+            }
+        }
 
-        result.addAll(getLocalProperties().keySet());
-        for (int i = getParents().size() - 1; i >= 0; i--) {
-            result.addAll(getParents().get(i).getPropertyKeys());
+        Set<String> protectedKeys = new HashSet<String>(protectedProperties);
+        for (Map.Entry<String, String> entry : localProperties.entrySet()) {
+            EffectiveProperty overridden = result.get(entry.getKey());
+            boolean isProtected = protectedKeys.contains(entry.getKey()) || (overridden != null && overridden.isProtected());
+            result.put(entry.getKey(), new EffectiveProperty(entry.getValue(), isProtected, getPropertyFileURL()));
         }
 
-        return result;
+        effectiveProperties = Collections.unmodifiableMap(result);
     }
 
     @Override
@@ -179,55 +202,92 @@ public class FilePropertyResolver extends BasePropertyResolver {
         }
 
         initialized = true;
+        lastModified = FileUtils.getLastModified(getPropertyFileURL());
 
-        for (String line : FileUtils.getFileAsLines(getPropertyFileURL(), getEncoding())) {
-            if (line.length() == 0) {
-                continue;
-            }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(getPropertyFileURL().openStream(), Charset.forName(getEncoding())));
 
-            if (line.startsWith(FilePropertyResolver.IMPORT_STRING)) {
-                String[] parents = line.substring(FilePropertyResolver.IMPORT_STRING.length()).trim().split(" ");
-                for (String parentAsString : parents) {
-                    URL parentUrl = FileUtils.getFileUrl(getPropertyFileURL(), parentAsString);
-                    FilePropertyResolver parent = new FilePropertyResolver(parentUrl);
-                    parent.setEncoding(getEncoding());
-                    parent.setBeginToken(getBeginToken());
-                    parent.setEndToken(getEndToken());
-                    addParent(parent);
-                }
-                continue;
-            }
-            if (line.startsWith(FilePropertyResolver.COMMENT_STRING)) {
-                continue;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parseLine(line);
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
 
-            Matcher matcher = PROPERTY_PATTERN.matcher(line);
-            matcher.find();
-            if (matcher.groupCount() != 2) {
-                throw new WrongPropertyLineRuntimeException(line);
-            }
-            String key = matcher.group(1);
-            String value = matcher.group(2);
+    private void parseLine(String line) {
+        if (line.length() == 0) {
+            return;
+        }
 
-            if (key.startsWith(PROTECTED_MARKER)) {
-                key = key.substring(1);
-                protectedProperties.add(key);
+        if (line.startsWith(FilePropertyResolver.IMPORT_STRING)) {
+            String[] parents = line.substring(FilePropertyResolver.IMPORT_STRING.length()).trim().split(" ");
+            for (String parentAsString : parents) {
+                URL parentUrl = FileUtils.getFileUrl(getPropertyFileURL(), parentAsString);
+                addParent(PropertyFileCache.getFilePropertyResolver(parentUrl, getEncoding(), getBeginToken(), getEndToken()));
             }
+            return;
+        }
+        if (line.startsWith(FilePropertyResolver.COMMENT_STRING)) {
+            return;
+        }
+
+        // same as PROPERTY_PATTERN: the key is everything before the first separator, a line without one is a key with an empty value
+        String key;
+        String value;
+        int separator = line.indexOf(SEPARATOR_STRING);
+        if (separator == -1) {
+            key = line;
+            value = "";
+        } else {
+            key = line.substring(0, separator);
+            value = line.substring(separator + SEPARATOR_STRING.length());
+        }
 
-            String allreadyAdded = localProperties.put(key, value);
-            if (allreadyAdded != null) {
-                duplicateProperties.add(key);
+        if (key.startsWith(PROTECTED_MARKER)) {
+            key = key.substring(PROTECTED_MARKER.length());
+            protectedProperties.add(key);
+        }
+
+        String allreadyAdded = localProperties.put(key, value);
+        if (allreadyAdded != null) {
+            duplicateProperties.add(key);
+        }
+    }
+
+    /**
+     * @return true if neither the file nor one of the imported files was modified since they were read.
+     */
+    boolean isUpToDate() {
+        if (!initialized || lastModified != FileUtils.getLastModified(getPropertyFileURL())) {
+            return false;
+        }
+        for (FilePropertyResolver parent : getParents()) {
+            if (!parent.isUpToDate()) {
+                return false;
             }
         }
+        return true;
     }
 
     protected void setLocalProperties(Map<String, String> localProperties) {
         this.localProperties = localProperties;
+        resetEffectiveProperties();
     }
 
     protected void addParent(FilePropertyResolver parent) {
         parent.initialize();
         parents.add(parent);
+        resetEffectiveProperties();
+    }
+
+    private void resetEffectiveProperties() {
+        effectiveProperties = null;
+        propertyKeys = null;
     }
 
     public void setEncoding(String encoding) {
@@ -258,4 +318,39 @@ public class FilePropertyResolver extends BasePropertyResolver {
         return endToken;
     }
 
+    public static class EffectiveProperty {
+
+        private String  value;
+        private boolean isProtected;
+        private URL     origin;
+
+        public EffectiveProperty(String value, boolean isProtected, URL origin) {
+            this.value = value;
+            this.isProtected = isProtected;
+            this.origin = origin;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public boolean isProtected() {
+            return isProtected;
+        }
+
+        /**
+         * @return the url of the property file which defines the value.
+         */
+        public URL getOrigin() {
+            return origin;
+        }
+
+        private EffectiveProperty protect(boolean protect) {
+            if (!protect || isProtected) {
+                return this;
+            }
+            return new EffectiveProperty(value, true, origin);
+        }
+    }
+
 }
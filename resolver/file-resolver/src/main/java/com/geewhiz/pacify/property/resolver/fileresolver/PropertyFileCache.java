@@ -0,0 +1,69 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.resolver.file-resolver
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify.property.resolver.fileresolver;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The imported property files of the process. A file which is imported by several property files is read only once, as long as neither the
+ * file nor one of its imports is modified. Only the most recently used files are kept.
+ */
+public class PropertyFileCache {
+
+    static final int                                       MAX_ENTRIES           = 256;
+
+    private static final Map<String, FilePropertyResolver> filePropertyResolvers = new LinkedHashMap<String, FilePropertyResolver>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FilePropertyResolver> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public static FilePropertyResolver getFilePropertyResolver(URL propertyFileURL, String encoding, String beginToken, String endToken) {
+        String key = propertyFileURL.toExternalForm() + "|" + encoding + "|" + beginToken + "|" + endToken;
+
+        FilePropertyResolver filePropertyResolver;
+        synchronized (filePropertyResolvers) {
+            filePropertyResolver = filePropertyResolvers.get(key);
+        }
+        if (filePropertyResolver != null && filePropertyResolver.isUpToDate()) {
+            return filePropertyResolver;
+        }
+
+        filePropertyResolver = new FilePropertyResolver(propertyFileURL);
+        filePropertyResolver.setEncoding(encoding);
+        filePropertyResolver.setBeginToken(beginToken);
+        filePropertyResolver.setEndToken(endToken);
+
+        // read it outside of the lock, as its imports are looked up here as well, and before it is visible to other threads
+        filePropertyResolver.getLocalProperties();
+
+        synchronized (filePropertyResolvers) {
+            filePropertyResolvers.put(key, filePropertyResolver);
+        }
+        return filePropertyResolver;
+    }
+}
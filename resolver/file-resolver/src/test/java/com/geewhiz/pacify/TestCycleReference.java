@@ -29,6 +29,8 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.geewhiz.pacify.checks.impl.CheckPropertyExists;
+import com.geewhiz.pacify.checks.impl.CheckPropertyHasCycle;
+import com.geewhiz.pacify.managers.PropertyResolveManager;
 import com.geewhiz.pacify.defect.Defect;
 import com.geewhiz.pacify.defect.PropertyHasCycleDefect;
 
@@ -38,14 +40,15 @@ public class TestCycleReference extends FileResolverTestBase {
     public void checkForNotCorrect() {
         String testFolder = "cycleReference";
 
+        PropertyResolveManager propertyResolveManager = createPropertyResolveManager(testFolder);
         LinkedHashSet<Defect> result = createPrepareAndExecuteValidator(testFolder, createPropertyResolveManager(Collections.<String, String> emptyMap()),
-                new CheckPropertyExists(createPropertyResolveManager(testFolder)));
+                new CheckPropertyExists(propertyResolveManager), new CheckPropertyHasCycle(propertyResolveManager));
 
         List<Defect> defects = new ArrayList<Defect>(result);
 
-        Assert.assertEquals(3, defects.size());
+        // all three properties are part of the same cycle, which is reported once
+        Assert.assertEquals(1, defects.size());
+        Assert.assertEquals("foobar1", ((PropertyHasCycleDefect) defects.get(0)).getProperty());
         Assert.assertEquals("foobar1->foobar3->foobar2->foobar1", ((PropertyHasCycleDefect) defects.get(0)).getCycle());
-        Assert.assertEquals("foobar2->foobar1->foobar3->foobar2", ((PropertyHasCycleDefect) defects.get(1)).getCycle());
-        Assert.assertEquals("foobar3->foobar2->foobar1->foobar3", ((PropertyHasCycleDefect) defects.get(2)).getCycle());
     }
 }
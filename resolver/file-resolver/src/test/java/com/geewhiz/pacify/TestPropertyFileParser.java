@@ -0,0 +1,87 @@
+/*-
+ * ========================LICENSE_START=================================
+ * com.geewhiz.pacify.resolver.file-resolver
+ * %%
+ * Copyright (C) 2011 - 2017 Sven Oppermann
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+package com.geewhiz.pacify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.geewhiz.pacify.property.resolver.fileresolver.FilePropertyResolver;
+
+/**
+ * A property file is no java properties file, there is no escaping, no line continuation and no trimming. A line is split at the first "=".
+ */
+public class TestPropertyFileParser {
+
+    private URL url = this.getClass().getClassLoader().getResource("properties/parser/Lines.properties");
+
+    @Test
+    public void testLines() {
+        Map<String, String> shouldLookLike = new LinkedHashMap<String, String>();
+        shouldLookLike.put("escaped\\", "key=value");
+        shouldLookLike.put("escaped\\:colon:value", "");
+        shouldLookLike.put("colon:separated", "");
+        shouldLookLike.put("   leadingWhitespace", "value");
+        shouldLookLike.put("trailingWhitespace", "value   ");
+        shouldLookLike.put("continued", "first\\");
+        shouldLookLike.put("second", "line");
+        shouldLookLike.put("withoutSeparator", "");
+        shouldLookLike.put("empty", "");
+        shouldLookLike.put("twoSeparators", "a=b");
+        shouldLookLike.put("protected", "secret");
+
+        FilePropertyResolver filePropertyResolver = new FilePropertyResolver(url);
+
+        Assert.assertEquals(shouldLookLike, filePropertyResolver.getLocalProperties());
+        Assert.assertEquals(Arrays.asList("protected"), filePropertyResolver.getProtectedProperties());
+        Assert.assertEquals(0, filePropertyResolver.checkForDuplicateEntry().size());
+    }
+
+    @Test
+    public void testLinesAreSplitLikeThePropertyPattern() throws IOException {
+        FilePropertyResolver filePropertyResolver = new FilePropertyResolver(url);
+
+        InputStream is = url.openStream();
+        try {
+            for (String line : IOUtils.readLines(is, "UTF-8")) {
+                if (line.length() == 0 || line.startsWith(FilePropertyResolver.COMMENT_STRING)) {
+                    continue;
+                }
+
+                Matcher matcher = FilePropertyResolver.PROPERTY_PATTERN.matcher(line);
+                Assert.assertTrue(line, matcher.matches());
+
+                String key = matcher.group(1).replaceFirst("^\\*", "");
+                Assert.assertEquals(line, matcher.group(2), filePropertyResolver.getLocalProperties().get(key));
+            }
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+}
@@ -20,9 +20,12 @@
 
 package com.geewhiz.pacify;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.util.Properties;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -76,4 +79,51 @@ public class TestRecursivePropertyFileLoader {
         Assert.assertEquals(child2PropertiesShouldLookLike, filePropertyResolver.getParents().get(1).getLocalProperties());
         Assert.assertEquals(basePropertiesShouldLookLike, filePropertyResolver.getParents().get(0).getParents().get(0).getLocalProperties());
     }
+
+    @Test
+    public void testSharedImportIsParsedOnce() {
+        URL url = this.getClass().getClassLoader().getResource("properties/subfolder/ChildOfChilds.properties");
+
+        // both children import the base file
+        FilePropertyResolver filePropertyResolver = new FilePropertyResolver(url);
+        Assert.assertEquals(allPropertiesShouldLookLike.size(), filePropertyResolver.getPropertyKeys().size());
+
+        FilePropertyResolver baseOfChild1 = filePropertyResolver.getParents().get(0).getParents().get(0);
+        FilePropertyResolver baseOfChild2 = filePropertyResolver.getParents().get(1).getParents().get(0);
+
+        Assert.assertSame("The base file is parsed only once.", baseOfChild1, baseOfChild2);
+        Assert.assertEquals(basePropertiesShouldLookLike, baseOfChild1.getLocalProperties());
+
+        // the imports are shared with another property file as well
+        FilePropertyResolver another = new FilePropertyResolver(url);
+        another.getLocalProperties();
+        Assert.assertSame(baseOfChild1, another.getParents().get(0).getParents().get(0));
+    }
+
+    @Test
+    public void testModifiedImportIsParsedAgain() throws IOException {
+        File folder = File.createTempFile("propertyFileCache", "");
+        folder.delete();
+        try {
+            FileUtils.copyDirectory(new File(this.getClass().getClassLoader().getResource("properties").getFile()), folder);
+            URL url = new File(folder, "subfolder/ChildOfChilds.properties").toURI().toURL();
+
+            FilePropertyResolver first = new FilePropertyResolver(url);
+            first.getLocalProperties();
+            FilePropertyResolver child1 = first.getParents().get(0);
+            FilePropertyResolver base = child1.getParents().get(0);
+
+            // the base file is modified, so all files which import it are read again
+            File baseFile = new File(folder, "Base.properties");
+            baseFile.setLastModified(baseFile.lastModified() - 60 * 1000);
+
+            FilePropertyResolver second = new FilePropertyResolver(url);
+            second.getLocalProperties();
+            Assert.assertNotSame(child1, second.getParents().get(0));
+            Assert.assertNotSame(base, second.getParents().get(0).getParents().get(0));
+            Assert.assertSame(second.getParents().get(0).getParents().get(0), second.getParents().get(1).getParents().get(0));
+        } finally {
+            FileUtils.deleteQuietly(folder);
+        }
+    }
 }